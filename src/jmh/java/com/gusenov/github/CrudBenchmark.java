@@ -0,0 +1,199 @@
+package com.gusenov.github;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Пропускная способность операций {@link SQLiteUtils} на временном файле и на БД в памяти.
+ *
+ * Каждый замер выполняется в одном потоке и, в {@link FourThreads}, в четырёх. Другое число потоков задаётся
+ * ключом JMH {@code -t}, например {@code ./gradlew jmh -PjmhArgs="-t 8 CrudBenchmark.select"}.
+ * С файлом у каждого потока своё соединение с общей БД. БД в памяти у каждого потока своя: в общем кэше
+ * блокировки берутся на таблицы, и параллельная запись получает SQLITE_LOCKED без ожидания.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrudBenchmark {
+    private static final String TABLE = "warehouses";
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"file", "memory"})
+        public String storage;
+
+        @Param({"1000", "100000"})
+        public int rows;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            if ("file".equals(storage)) {
+                file = File.createTempFile("sqlite-utils-jmh", ".db");
+                try (Connection conn = open()) {
+                    populate(conn, rows);
+                    SQLiteUtils.closeStatementCache(conn);
+                }
+            }
+        }
+
+        /**
+         * Соединение с общим файлом или, для БД в памяти, новая заполненная БД только для вызывающего потока.
+         */
+        Connection open() {
+            if ("memory".equals(storage)) {
+                Connection conn = SQLiteUtils.connectOrCreateNewDatabase(":memory:");
+                populate(conn, rows);
+                return conn;
+            }
+            return SQLiteUtils.connectOrCreateNewDatabase(file.getAbsolutePath(), PragmaProfile.OLTP);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (file != null) {
+                for (String suffix : new String[] {"", "-wal", "-shm"}) {
+                    new File(file.getAbsolutePath() + suffix).delete();
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        Connection conn;
+
+        int rows;
+
+        SQLiteUtils.CompiledQuery selectById;
+
+        List<String> columns;
+
+        @Setup(Level.Trial)
+        public void setUp(Database db) {
+            conn = db.open();
+            rows = db.rows;
+            columns = new ArrayList<>();
+            columns.add("id");
+            columns.add("name");
+            columns.add("capacity");
+            selectById = SQLiteUtils.compileSelect(TABLE, columns, new SQLiteUtils.QueryCriteria().andEquals("id", null));
+        }
+
+        int randomId() {
+            return ThreadLocalRandom.current().nextInt(rows) + 1;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            SQLiteUtils.closeStatementCache(conn);
+            conn.close();
+        }
+    }
+
+    /**
+     * Те же замеры в четырёх потоках.
+     */
+    @Threads(4)
+    public static class FourThreads extends CrudBenchmark {
+    }
+
+    static void populate(Connection conn, int rows) {
+        SortedMap<String, String> columns = new TreeMap<>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        columns.put("capacity", "real");
+        SQLiteUtils.createNewTable(conn, TABLE, columns);
+
+        List<SortedMap<String, Object>> values = new ArrayList<>(rows);
+        for (int i = 1; i <= rows; i++) {
+            values.add(row(i));
+        }
+        SQLiteUtils.insertAll(conn, TABLE, values, new BatchInserter.Options().setChunkRows(10000));
+    }
+
+    static SortedMap<String, Object> row(int i) {
+        SortedMap<String, Object> values = new TreeMap<>();
+        values.put("name", "Warehouse " + i);
+        values.put("capacity", (double) i);
+        return values;
+    }
+
+    @Benchmark
+    public void insert(Session session) {
+        SQLiteUtils.insert(session.conn, TABLE, row(session.randomId()));
+    }
+
+    @Benchmark
+    public void update(Session session) {
+        int id = session.randomId();
+        SortedMap<String, Object> criterions = new TreeMap<>();
+        criterions.put("id", id);
+        SQLiteUtils.update(session.conn, TABLE, row(id), criterions);
+    }
+
+    @Benchmark
+    public void selectSql(Session session, Blackhole bh) {
+        SQLiteUtils.select(session.conn, "SELECT id, name, capacity FROM warehouses WHERE id = " + session.randomId() + ";",
+                rs -> bh.consume(rs.getString(2)));
+    }
+
+    @Benchmark
+    public void selectCriteria(Session session, Blackhole bh) {
+        SQLiteUtils.QueryCriteria criterions = new SQLiteUtils.QueryCriteria().andEquals("id", session.randomId());
+        SQLiteUtils.select(session.conn, TABLE, session.columns, criterions, rs -> bh.consume(rs.getString(2)));
+    }
+
+    @Benchmark
+    public void selectCompiled(Session session, Blackhole bh) {
+        SQLiteUtils.select(session.conn, session.selectById, new Object[] {session.randomId()},
+                rs -> bh.consume(rs.getString(2)));
+    }
+
+    @Benchmark
+    public void deleteAndReinsert(Session session) {
+        int id = session.randomId();
+        SQLiteUtils.delete(session.conn, TABLE, new SQLiteUtils.QueryCriteria().andEquals("id", id));
+        SortedMap<String, Object> values = row(id);
+        values.put("id", id);
+        SQLiteUtils.insert(session.conn, TABLE, values);
+    }
+
+    @Benchmark
+    public void createAndDropTable(Session session) throws SQLException {
+        String tableName = "t" + Thread.currentThread().getId();
+        SQLiteUtils.createNewTable(session.conn, tableName, new TreeMap<>(Collections.singletonMap("id", "integer PRIMARY KEY")));
+        try (Statement stmt = session.conn.createStatement()) {
+            stmt.execute("DROP TABLE " + tableName + ";");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.gusenov.github;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Асинхронный обработчик журнала: записи кладутся в ограниченную очередь и передаются целевому обработчику
+ * (например, {@link java.util.logging.FileHandler}) в отдельном потоке, поэтому запрос не ждёт записи на диск.
+ * При переполнении очереди записи отбрасываются, количество отброшенных доступно через {@link #getDropped()}.
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/logging/Handler.html">Handler</a>
+ */
+public class AsyncLogHandler extends Handler {
+    private final Handler target;
+
+    private final BlockingQueue<LogRecord> queue;
+
+    private final Thread thread;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param target   обработчик, в который записи передаются асинхронно.
+     * @param capacity максимальное количество записей в очереди.
+     */
+    public AsyncLogHandler(Handler target, int capacity) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::loop, "sqlite-utils-log");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // имя вызывающего метода определяется по стеку текущего потока, поэтому до передачи в другой поток
+        record.getSourceMethodName();
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void loop() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                LogRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    target.publish(record);
+                } else {
+                    target.flush();
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+        }
+        target.flush();
+    }
+
+    /**
+     * Записи, поставленные в очередь, будут записаны потоком обработчика в ближайшее время.
+     */
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    /**
+     * Дописать очередь и закрыть целевой обработчик.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+}
@@ -0,0 +1,501 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Неблокирующий фасад над {@link SQLiteUtils} для пула {@link SQLitePool}: операции возвращают
+ * {@link CompletableFuture}, а строки запроса можно получать по мере спроса через {@link IPublisher}.
+ *
+ * Записи ставятся в очередь писателя пула. Чтения выполняются на исполнителе: виртуальных потоках,
+ * если JVM их поддерживает (Java 21+), иначе на ограниченном пуле потоков по числу читателей пула.
+ * Одновременно выполняется не больше {@link Options#getMaxConcurrentReads()} чтений, остальные ждут разрешения
+ * в очереди, не занимая ни соединений, ни потоков исполнителя: задача передаётся исполнителю только вместе
+ * с разрешением. Поэтому конкуренция за блокировки SQLite остаётся ограниченной, а подписка, которая держит
+ * разрешение между запросами строк, не мешает исполнителю выдавать ей следующие строки.
+ *
+ * Интерфейсы {@link IPublisher}, {@link ISubscriber} и {@link ISubscription} повторяют
+ * {@code java.util.concurrent.Flow} (Java 9+), который недоступен в Java 8, и легко адаптируются к нему.
+ *
+ * @see <a href="https://github.com/reactive-streams/reactive-streams-jvm/blob/master/README.md#specification">Reactive Streams</a>
+ * @see <a href="https://openjdk.org/jeps/444">JEP 444: Virtual Threads</a>
+ */
+public class AsyncSQLiteUtils implements AutoCloseable {
+
+    /**
+     * Источник элементов, выдаваемых по запросу подписчика.
+     */
+    public interface IPublisher<T> {
+        void subscribe(ISubscriber<? super T> subscriber);
+    }
+
+    /**
+     * Подписчик; методы вызываются последовательно, не одновременно.
+     */
+    public interface ISubscriber<T> {
+        void onSubscribe(ISubscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Подписка: спрос на элементы и отмена.
+     */
+    public interface ISubscription {
+        /**
+         * @param n сколько ещё элементов готов принять подписчик; должно быть больше 0.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * Параметры фасада.
+     */
+    public static class Options {
+        private int maxConcurrentReads = 0;
+
+        private boolean virtualThreads = true;
+
+        private int queueCapacity = 10000;
+
+        private ExecutorService executor = null;
+
+        public int getMaxConcurrentReads() {
+            return maxConcurrentReads;
+        }
+
+        /**
+         * @param maxConcurrentReads наибольшее число одновременных чтений (0 — по числу читателей пула).
+         */
+        public Options setMaxConcurrentReads(int maxConcurrentReads) {
+            this.maxConcurrentReads = maxConcurrentReads;
+            return this;
+        }
+
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+
+        /**
+         * @param virtualThreads использовать ли виртуальные потоки, если JVM их поддерживает.
+         */
+        public Options setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        /**
+         * @param queueCapacity сколько чтений может ждать разрешения, и очередь ограниченного пула потоков;
+         *                      при переполнении операция завершается {@link RejectedExecutionException}.
+         */
+        public Options setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public ExecutorService getExecutor() {
+            return executor;
+        }
+
+        /**
+         * @param executor собственный исполнитель чтений; фасад его не закрывает.
+         */
+        public Options setExecutor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+    }
+
+    private final SQLitePool pool;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final Semaphore reads;
+
+    /**
+     * Ожидающие разрешения на чтение; освободившееся разрешение передаётся первому из них.
+     */
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    private final int queueCapacity;
+
+    public AsyncSQLiteUtils(SQLitePool pool) {
+        this(pool, new Options());
+    }
+
+    public AsyncSQLiteUtils(SQLitePool pool, Options options) {
+        this.pool = pool;
+        int readers = Math.max(1, pool.getOptions().getReaders());
+        this.reads = new Semaphore(options.getMaxConcurrentReads() > 0 ? options.getMaxConcurrentReads() : readers);
+        this.queueCapacity = options.getQueueCapacity();
+        if (options.getExecutor() != null) {
+            this.executor = options.getExecutor();
+            this.ownExecutor = false;
+        } else {
+            ExecutorService virtual = options.isVirtualThreads() ? newVirtualThreadExecutor() : null;
+            this.executor = virtual != null ? virtual : newBoundedExecutor(readers, options.getQueueCapacity());
+            this.ownExecutor = true;
+        }
+    }
+
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} через отражение, чтобы сборка оставалась на Java 8.
+     *
+     * @return исполнитель или {@code null}, если виртуальные потоки недоступны.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newBoundedExecutor(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "sqlite-async-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public SQLitePool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return исполнитель чтений.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return количество чтений, которые можно начать прямо сейчас.
+     */
+    public int getAvailableReads() {
+        return reads.availablePermits();
+    }
+
+    /**
+     * Вызвать {@code granted}, когда освободится разрешение на чтение: сразу или в потоке, который его вернёт.
+     * Поток при ожидании не блокируется; получивший разрешение возвращает его через {@link #releaseRead()}.
+     *
+     * @param granted короткое действие без исключений, обычно передача задачи исполнителю.
+     *
+     * @throws RejectedExecutionException если разрешения ждут уже {@link Options#getQueueCapacity()} чтений.
+     */
+    private void acquireRead(Runnable granted) {
+        if (waitingCount.incrementAndGet() > queueCapacity) {
+            waitingCount.decrementAndGet();
+            throw new RejectedExecutionException("Too many reads waiting for a permit: " + queueCapacity);
+        }
+        waiting.add(granted);
+        dispatch();
+    }
+
+    private void releaseRead() {
+        reads.release();
+        dispatch();
+    }
+
+    /**
+     * Раздать свободные разрешения ожидающим. Вызывается и после постановки в очередь, и после возврата разрешения,
+     * поэтому ожидающий не остаётся в очереди при свободном разрешении.
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty() && reads.tryAcquire()) {
+            Runnable granted = waiting.poll();
+            if (granted == null) {
+                reads.release();
+            } else {
+                waitingCount.decrementAndGet();
+                granted.run();
+            }
+        }
+    }
+
+    /**
+     * Выполнить чтение на соединении-читателе пула.
+     */
+    public <T> CompletableFuture<T> read(SQLitePool.IConnectionCallback<T> callback) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            acquireRead(() -> {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            future.complete(pool.read(callback));
+                        } catch (SQLException | RuntimeException e) {
+                            future.completeExceptionally(e);
+                        } finally {
+                            releaseRead();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    releaseRead();
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return количество вставленных строк.
+     *
+     * @see SQLiteUtils#insert(Connection, String, SortedMap)
+     */
+    public CompletableFuture<Integer> insert(String tableName, SortedMap<String, Object> values) {
+        return pool.submitWrite(conn -> SQLiteUtils.executeInsert(conn, tableName, values));
+    }
+
+    /**
+     * @return количество изменённых строк.
+     *
+     * @see SQLiteUtils#update(Connection, String, SortedMap, SortedMap)
+     */
+    public CompletableFuture<Integer> update(String tableName, SortedMap<String, Object> values, SortedMap<String, Object> criterions) {
+        return pool.submitWrite(conn -> SQLiteUtils.executeUpdate(conn, tableName, values, criterions));
+    }
+
+    /**
+     * @return количество удалённых строк.
+     *
+     * @see SQLiteUtils#delete(Connection, String, SQLiteUtils.QueryCriteria)
+     */
+    public CompletableFuture<Integer> delete(String tableName, SQLiteUtils.QueryCriteria criterions) {
+        return pool.submitWrite(conn -> SQLiteUtils.executeDelete(conn, tableName, criterions));
+    }
+
+    /**
+     * Прочитать все строки запроса.
+     *
+     * @return неизменяемый список строк.
+     */
+    public CompletableFuture<List<Row>> select(String tableName, List<String> columns, SQLiteUtils.QueryCriteria criterions) {
+        return read(conn -> SQLiteUtils.readRows(conn,
+                SQLiteUtils.advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql())),
+                criterions.getValues()));
+    }
+
+    /**
+     * Строки запроса по мере спроса подписчика. Запрос выполняется при первом {@link ISubscription#request(long)},
+     * строки читаются с курсора порциями по {@code fetchSize} и выдаются не больше запрошенного.
+     * До завершения или отмены подписка держит соединение-читатель и разрешение на чтение, поэтому подписчик
+     * должен либо запрашивать строки дальше, либо отменить подписку.
+     *
+     * @param fetchSize сколько строк драйвер читает за одно обращение (0 — значение драйвера по умолчанию).
+     */
+    public IPublisher<Row> publish(String tableName, List<String> columns, SQLiteUtils.QueryCriteria criterions, int fetchSize) {
+        SQLiteUtils.QueryCriteria copy = criterions.copy();
+        return subscriber -> subscriber.onSubscribe(new RowSubscription(subscriber, tableName, columns, copy, fetchSize));
+    }
+
+    /**
+     * Подписка с циклом выдачи: вызовы {@code request} только увеличивают спрос, а строки выдаёт одна задача
+     * на исполнителе, поэтому {@code onNext} никогда не вызывается одновременно и рекурсивно.
+     */
+    private final class RowSubscription implements ISubscription {
+        private final ISubscriber<? super Row> subscriber;
+
+        private final String tableName;
+
+        private final List<String> columns;
+
+        private final SQLiteUtils.QueryCriteria criterions;
+
+        private final int fetchSize;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private volatile boolean cancelled = false;
+
+        private volatile Throwable invalidRequest = null;
+
+        /**
+         * Разрешение на чтение выдано; выставляется при выдаче, сбрасывается и возвращается только в цикле выдачи.
+         */
+        private volatile boolean permit = false;
+
+        private boolean permitRequested = false;
+
+        private Connection conn = null;
+
+        private RowIterator rows = null;
+
+        RowSubscription(ISubscriber<? super Row> subscriber, String tableName, List<String> columns,
+                        SQLiteUtils.QueryCriteria criterions, int fetchSize) {
+            this.subscriber = subscriber;
+            this.tableName = tableName;
+            this.columns = columns;
+            this.criterions = criterions;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+                cancelled = true;
+            } else {
+                demand.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    cancelled = true;
+                    finish(e);
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                try {
+                    if (done.get()) {
+                        // разрешение выдано уже после завершения подписки
+                        if (permit) {
+                            permit = false;
+                            releaseRead();
+                        }
+                    } else if (cancelled) {
+                        finish(invalidRequest);
+                    } else if (demand.get() > 0 && (rows != null || open())) {
+                        long emitted = 0;
+                        long requested = demand.get();
+                        while (emitted < requested && !cancelled && rows.hasNext()) {
+                            subscriber.onNext(rows.next());
+                            emitted++;
+                        }
+                        demand.addAndGet(-emitted);
+                        if (!cancelled && !rows.hasNext()) {
+                            finish(null);
+                        }
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    finish(e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Выполнить запрос, если разрешение уже выдано; иначе встать в очередь за разрешением,
+         * не занимая поток: при выдаче цикл выдачи будет запущен снова.
+         *
+         * @return {@code true}, если курсор открыт.
+         */
+        private boolean open() throws SQLException {
+            if (!permit) {
+                if (!permitRequested) {
+                    permitRequested = true;
+                    acquireRead(() -> {
+                        permit = true;
+                        schedule();
+                    });
+                }
+                return false;
+            }
+            conn = pool.acquireReader();
+            rows = SQLiteUtils.iterate(conn, tableName, columns, criterions, fetchSize);
+            return true;
+        }
+
+        /**
+         * Закрыть курсор, вернуть соединение и разрешение, сообщить подписчику итог (кроме отмены).
+         */
+        private void finish(Throwable error) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (rows != null) {
+                    rows.close();
+                }
+            } catch (RuntimeException e) {
+                SQLiteUtils.getLogger().warning("Failed to close row cursor: " + e.getMessage());
+            } finally {
+                if (conn != null) {
+                    pool.releaseReader(conn);
+                }
+                if (permit) {
+                    permit = false;
+                    releaseRead();
+                }
+            }
+            if (error != null) {
+                subscriber.onError(error);
+            } else if (!cancelled) {
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    /**
+     * Остановить собственный исполнитель; пул не закрывается.
+     */
+    @Override
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.Arrays;
+import java.util.SortedMap;
+
+/**
+ * Потоковая пакетная вставка строк в таблицу.
+ *
+ * Запрос подготавливается один раз, строки привязываются через {@code addBatch()}/{@code executeBatch()},
+ * а фиксация транзакции происходит порциями: каждые N строк и/или каждые M миллисекунд.
+ * Пока вставщик открыт, у соединения отключён autocommit; при закрытии прежний режим восстанавливается.
+ *
+ * Если у соединения уже открыта транзакция вызывающего (autocommit отключён), вставщик её не фиксирует
+ * и не откатывает: каждая порция — точка сохранения ({@code SAVEPOINT}), которая освобождается вместо фиксации,
+ * а при откате отменяется только она. Строки фиксируются вместе с транзакцией вызывающего.
+ *
+ * @see <a href="https://www.sqlite.org/lang_savepoint.html">SAVEPOINT</a>
+ * @see <a href="https://www.sqlite.org/faq.html#q19">INSERT is really slow - I can only do few dozen INSERTs per second</a>
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/sql/Statement.html#executeBatch--">Statement.executeBatch()</a>
+ */
+public class BatchInserter implements AutoCloseable {
+
+    /**
+     * Параметры пакетной вставки.
+     */
+    public static class Options {
+        private int chunkRows = 1000;
+
+        private long chunkMillis = 0;
+
+        private boolean returnGeneratedKeys = false;
+
+        public int getChunkRows() {
+            return chunkRows;
+        }
+
+        /**
+         * @param chunkRows количество строк в одной транзакции (0 — без ограничения).
+         */
+        public Options setChunkRows(int chunkRows) {
+            this.chunkRows = chunkRows;
+            return this;
+        }
+
+        public long getChunkMillis() {
+            return chunkMillis;
+        }
+
+        /**
+         * @param chunkMillis максимальная длительность одной транзакции в миллисекундах (0 — без ограничения).
+         *                    Проверяется при добавлении очередной строки.
+         */
+        public Options setChunkMillis(long chunkMillis) {
+            this.chunkMillis = chunkMillis;
+            return this;
+        }
+
+        public boolean isReturnGeneratedKeys() {
+            return returnGeneratedKeys;
+        }
+
+        /**
+         * @param returnGeneratedKeys собирать ли сгенерированные ключи (rowid) вставленных строк.
+         *                            В этом режиме строки выполняются по одной вместо {@code executeBatch()}.
+         */
+        public Options setReturnGeneratedKeys(boolean returnGeneratedKeys) {
+            this.returnGeneratedKeys = returnGeneratedKeys;
+            return this;
+        }
+    }
+
+    /**
+     * Итог пакетной вставки.
+     */
+    public static class Result {
+        private final long rows;
+
+        private final long chunks;
+
+        private final long elapsedNanos;
+
+        private final long[] generatedKeys;
+
+        Result(long rows, long chunks, long elapsedNanos, long[] generatedKeys) {
+            this.rows = rows;
+            this.chunks = chunks;
+            this.elapsedNanos = elapsedNanos;
+            this.generatedKeys = generatedKeys;
+        }
+
+        /**
+         * @return количество зафиксированных строк (в транзакции вызывающего — строк освобождённых порций).
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return количество зафиксированных транзакций.
+         */
+        public long getChunks() {
+            return chunks;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos > 0 ? rows * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * @return сгенерированные ключи в порядке вставки или пустой массив,
+         *         если {@link Options#setReturnGeneratedKeys(boolean)} не включён.
+         */
+        public long[] getGeneratedKeys() {
+            return generatedKeys;
+        }
+
+        public String toString() {
+            return rows + " rows in " + chunks + " chunks, " + Math.round(getRowsPerSecond()) + " rows/sec";
+        }
+    }
+
+    private final Connection conn;
+
+    private final String tableName;
+
+    private final Options options;
+
+    private final boolean autoCommit;
+
+    private final long startNanos;
+
+    private String[] columns;
+
+    private PreparedStatement pstmt;
+
+    private ValueBinders.Plan plan;
+
+    private PreparedStatement lastRowIdStmt;
+
+    private Savepoint savepoint;
+
+    private int pendingRows = 0;
+
+    private int chunkRows = 0;
+
+    private long chunkStartNanos;
+
+    private long committedRows = 0;
+
+    private long committedChunks = 0;
+
+    private long[] keys = new long[0];
+
+    private int committedKeys = 0;
+
+    private int pendingKeys = 0;
+
+    private boolean closed = false;
+
+    public BatchInserter(Connection conn, String tableName) throws SQLException {
+        this(conn, tableName, new Options());
+    }
+
+    public BatchInserter(Connection conn, String tableName, Options options) throws SQLException {
+        this.conn = conn;
+        this.tableName = tableName;
+        this.options = options;
+        this.autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        this.startNanos = System.nanoTime();
+        this.chunkStartNanos = startNanos;
+        if (options.isReturnGeneratedKeys()) {
+            keys = new long[Math.max(16, options.getChunkRows())];
+        }
+    }
+
+    /**
+     * Добавить строку. Если набор столбцов отличается от предыдущей строки,
+     * накопленный пакет выполняется и запрос подготавливается заново.
+     *
+     * @param values наименования столбцов и значения.
+     */
+    public void add(SortedMap<String, Object> values) throws SQLException {
+        if (closed) {
+            throw new SQLException("BatchInserter is closed");
+        }
+        if (!autoCommit && savepoint == null) {
+            savepoint = conn.setSavepoint();
+        }
+        if (!sameColumns(values)) {
+            prepare(values);
+        }
+
+        plan.bind(pstmt, 1, values.values());
+
+        if (options.isReturnGeneratedKeys()) {
+            pstmt.executeUpdate();
+            addKey(lastInsertRowId());
+        } else {
+            pstmt.addBatch();
+        }
+        pendingRows++;
+        chunkRows++;
+
+        if ((options.getChunkRows() > 0 && chunkRows >= options.getChunkRows())
+                || (options.getChunkMillis() > 0 && System.nanoTime() - chunkStartNanos >= options.getChunkMillis() * 1000000L)) {
+            commit();
+        }
+    }
+
+    /**
+     * Выполнить накопленный пакет и зафиксировать транзакцию.
+     */
+    public void flush() throws SQLException {
+        if (!closed) {
+            commit();
+        }
+    }
+
+    /**
+     * @return итог по уже зафиксированным строкам.
+     */
+    public Result getResult() {
+        return new Result(committedRows, committedChunks, System.nanoTime() - startNanos,
+                Arrays.copyOf(keys, committedKeys));
+    }
+
+    /**
+     * Зафиксировать оставшиеся строки, закрыть запрос и восстановить режим autocommit.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        try {
+            commit();
+        } catch (SQLException e) {
+            rollback();
+            throw e;
+        } finally {
+            closed = true;
+            closeStatements();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Откатить незафиксированные строки. В транзакции вызывающего откатывается только текущая порция.
+     */
+    public void rollback() throws SQLException {
+        if (pstmt != null && !options.isReturnGeneratedKeys()) {
+            pstmt.clearBatch();
+        }
+        if (autoCommit) {
+            conn.rollback();
+        } else if (savepoint != null) {
+            conn.rollback(savepoint);
+            conn.releaseSavepoint(savepoint);
+            savepoint = null;
+        }
+        pendingRows = 0;
+        chunkRows = 0;
+        pendingKeys = 0;
+        chunkStartNanos = System.nanoTime();
+    }
+
+    private boolean sameColumns(SortedMap<String, Object> values) {
+        if (columns == null || columns.length != values.size()) {
+            return false;
+        }
+        int index = 0;
+        for (String column : values.keySet()) {
+            if (!columns[index++].equals(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void prepare(SortedMap<String, Object> values) throws SQLException {
+        executePending();
+        if (pstmt != null) {
+            pstmt.close();
+        }
+        columns = values.keySet().toArray(new String[0]);
+        plan = new ValueBinders.Plan();
+        pstmt = conn.prepareStatement(SQLBuilder.get().insert(tableName, values));
+    }
+
+    private void executePending() throws SQLException {
+        if (pstmt != null && !options.isReturnGeneratedKeys() && pendingRows > 0) {
+            pstmt.executeBatch();
+        }
+        pendingRows = 0;
+    }
+
+    private void commit() throws SQLException {
+        executePending();
+        if (autoCommit) {
+            conn.commit();
+        } else if (savepoint != null) {
+            conn.releaseSavepoint(savepoint);
+            savepoint = null;
+        }
+        if (chunkRows > 0) {
+            if (autoCommit) {
+                SQLiteUtils.invalidateResultCache(tableName);
+            } else {
+                SQLiteUtils.invalidateResultCache(conn, tableName);
+            }
+            committedRows += chunkRows;
+            committedChunks++;
+        }
+        committedKeys += pendingKeys;
+        pendingKeys = 0;
+        chunkRows = 0;
+        chunkStartNanos = System.nanoTime();
+    }
+
+    private long lastInsertRowId() throws SQLException {
+        if (lastRowIdStmt == null) {
+            lastRowIdStmt = conn.prepareStatement("SELECT last_insert_rowid();");
+        }
+        try (ResultSet rs = lastRowIdStmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private void addKey(long key) {
+        int size = committedKeys + pendingKeys;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size] = key;
+        pendingKeys++;
+    }
+
+    private void closeStatements() throws SQLException {
+        try {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+        } finally {
+            if (lastRowIdStmt != null) {
+                lastRowIdStmt.close();
+            }
+        }
+    }
+}
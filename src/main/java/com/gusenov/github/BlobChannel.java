@@ -0,0 +1,306 @@
+package com.gusenov.github;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Канал для чтения и записи значения BLOB одной строки по частям, без загрузки всего значения в память Java.
+ *
+ * sqlite-jdbc не предоставляет {@code sqlite3_blob_open}, поэтому части читаются запросом
+ * {@code substr(column, ?, ?)}, а пишутся запросом
+ * {@code UPDATE ... SET column = CAST(substr(column, 1, ?) || ? || substr(column, ?) AS BLOB)}
+ * (склейка даёт TEXT, поэтому результат приводится обратно к BLOB).
+ * В памяти Java находится не больше одной части, но на стороне SQLite каждая такая операция
+ * читает, а запись ещё и перезаписывает значение целиком, поэтому части стоит брать крупными (мегабайты),
+ * а запись выполнять в транзакции. Склейка через {@code ||} сохраняет байты как есть только в БД с кодировкой UTF-8
+ * (по умолчанию).
+ *
+ * Место под значение можно заранее выделить через {@link #preallocate(Connection, String, String, long, long)}:
+ * тогда запись по частям не меняет размер значения, а данные можно писать в любом порядке.
+ *
+ * @see <a href="https://www.sqlite.org/lang_corefunc.html#substr">substr</a>
+ * @see <a href="https://www.sqlite.org/lang_corefunc.html#zeroblob">zeroblob</a>
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/nio/channels/SeekableByteChannel.html">SeekableByteChannel</a>
+ */
+public class BlobChannel implements SeekableByteChannel {
+    private final Connection conn;
+
+    private final String tableName;
+
+    private final long rowid;
+
+    private final String sizeSql;
+
+    private final String readSql;
+
+    private final String writeSql;
+
+    private final String truncateSql;
+
+    private final ByteBuffer pending;
+
+    private long pendingPosition;
+
+    private long position = 0;
+
+    private long size = -1;
+
+    private boolean open = true;
+
+    /**
+     * @param conn      соединение с БД.
+     * @param tableName наименование таблицы.
+     * @param column    наименование столбца BLOB.
+     * @param rowid     rowid строки.
+     * @param chunkSize наибольший размер части при чтении и буфер записи в байтах.
+     */
+    public BlobChannel(Connection conn, String tableName, String column, long rowid, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.conn = conn;
+        this.tableName = tableName;
+        this.rowid = rowid;
+        String value = "coalesce(" + column + ", x'')";
+        this.sizeSql = "SELECT length(" + value + ") FROM " + tableName + " WHERE rowid = ?;";
+        this.readSql = "SELECT substr(" + column + ", ?, ?) FROM " + tableName + " WHERE rowid = ?;";
+        // substr пустого BLOB возвращает NULL, а не пустое значение
+        this.writeSql = "UPDATE " + tableName + " SET " + column + " = CAST(coalesce(substr(" + value + ", 1, ?1), x'')"
+                + " || zeroblob(max(?1 - length(" + value + "), 0)) || ?2 || coalesce(substr(" + value + ", ?3), x'') AS BLOB)"
+                + " WHERE rowid = ?4;";
+        this.truncateSql = "UPDATE " + tableName + " SET " + column + " = coalesce(substr(" + column + ", 1, ?), x'') WHERE rowid = ?;";
+        this.pending = ByteBuffer.allocate(chunkSize);
+    }
+
+    public BlobChannel(Connection conn, String tableName, String column, long rowid) {
+        this(conn, tableName, column, rowid, 1 << 20);
+    }
+
+    /**
+     * Заменить значение столбца строки на {@code length} нулевых байт. SQLite не хранит их в памяти,
+     * а сразу записывает в страницы БД.
+     *
+     * @return {@code true}, если строка с таким rowid найдена.
+     */
+    public static boolean preallocate(Connection conn, String tableName, String column, long rowid, long length) throws SQLException {
+        String sql = "UPDATE " + tableName + " SET " + column + " = zeroblob(?) WHERE rowid = ?;";
+        return execute(conn, tableName, sql, Arrays.<Object>asList(length, rowid)) > 0;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        flush();
+        if (position >= size()) {
+            return -1;
+        }
+        int length = (int) Math.min(Math.min(dst.remaining(), pending.capacity()), size - position);
+        if (length == 0) {
+            return 0;
+        }
+        List<Object> parameters = Arrays.<Object>asList(position + 1, length, rowid);
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = SQLiteUtils.acquireStatement(conn, readSql);
+            long prepared = System.nanoTime();
+            SQLiteUtils.setValuesForStatement(pstmt, 1, parameters);
+            byte[] bytes;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IOException("No row with rowid " + rowid + " in " + tableName);
+                }
+                bytes = rs.getBytes(1);
+            }
+            SQLiteUtils.recordQuery(readSql, start, prepared, 1, parameters);
+            int read = bytes != null ? bytes.length : 0;
+            if (read == 0) {
+                return -1;
+            }
+            dst.put(bytes, 0, read);
+            position += read;
+            return read;
+        } catch (SQLException e) {
+            SQLiteUtils.recordFailure(readSql, start, parameters, e);
+            throw new IOException(e);
+        } finally {
+            SQLiteUtils.releaseStatement(conn, readSql, pstmt);
+            SQLiteUtils.logSql(readSql, start);
+        }
+    }
+
+    /**
+     * Записать байты с текущей позиции. Байты накапливаются в буфере размером в одну часть
+     * и отправляются в БД, когда буфер заполнен, при переходе на другую позицию, чтении и закрытии канала.
+     * Запись за концом значения дополняет его нулевыми байтами.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        if (pending.position() > 0 && pendingPosition + pending.position() != position) {
+            flush();
+        }
+        int written = 0;
+        while (src.hasRemaining()) {
+            if (pending.position() == 0) {
+                pendingPosition = position;
+            }
+            int length = Math.min(src.remaining(), pending.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            pending.put(part);
+            src.position(src.position() + length);
+            position += length;
+            written += length;
+            if (!pending.hasRemaining()) {
+                flush();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Отправить в БД байты, накопленные при записи.
+     */
+    public void flush() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        byte[] bytes = Arrays.copyOf(pending.array(), pending.position());
+        List<Object> parameters = Arrays.<Object>asList(pendingPosition, bytes, pendingPosition + bytes.length + 1, rowid);
+        try {
+            if (execute(conn, tableName, writeSql, parameters) == 0) {
+                throw new IOException("No row with rowid " + rowid + " in " + tableName);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        if (size >= 0) {
+            size = Math.max(size, pendingPosition + bytes.length);
+        }
+        pending.clear();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public BlobChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return длина значения в байтах с учётом ещё не отправленной записи; NULL имеет длину 0.
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        if (size < 0) {
+            List<Object> parameters = Arrays.<Object>asList(rowid);
+            long start = System.nanoTime();
+
+            PreparedStatement pstmt = null;
+            try {
+                pstmt = SQLiteUtils.acquireStatement(conn, sizeSql);
+                long prepared = System.nanoTime();
+                SQLiteUtils.setValuesForStatement(pstmt, 1, parameters);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new IOException("No row with rowid " + rowid + " in " + tableName);
+                    }
+                    size = rs.getLong(1);
+                }
+                SQLiteUtils.recordQuery(sizeSql, start, prepared, 1, parameters);
+            } catch (SQLException e) {
+                SQLiteUtils.recordFailure(sizeSql, start, parameters, e);
+                throw new IOException(e);
+            } finally {
+                SQLiteUtils.releaseStatement(conn, sizeSql, pstmt);
+                SQLiteUtils.logSql(sizeSql, start);
+            }
+        }
+        return Math.max(size, pending.position() > 0 ? pendingPosition + pending.position() : 0);
+    }
+
+    @Override
+    public BlobChannel truncate(long newSize) throws IOException {
+        ensureOpen();
+        if (newSize < 0) {
+            throw new IllegalArgumentException("Negative size: " + newSize);
+        }
+        flush();
+        if (newSize < size()) {
+            try {
+                execute(conn, tableName, truncateSql, Arrays.<Object>asList(newSize, rowid));
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            size = newSize;
+        }
+        position = Math.min(position, newSize);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Отправить накопленные байты и закрыть канал; соединение не закрывается.
+     */
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            try {
+                flush();
+            } finally {
+                open = false;
+            }
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static int execute(Connection conn, String tableName, String sql, List<Object> parameters) throws SQLException {
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = SQLiteUtils.acquireStatement(conn, sql);
+            long prepared = System.nanoTime();
+            SQLiteUtils.setValuesForStatement(pstmt, 1, parameters);
+            int rows = pstmt.executeUpdate();
+            SQLiteUtils.invalidateResultCache(conn, tableName);
+            SQLiteUtils.recordQuery(sql, start, prepared, rows, parameters);
+            return rows;
+        } catch (SQLException e) {
+            SQLiteUtils.recordFailure(sql, start, parameters, e);
+            throw e;
+        } finally {
+            SQLiteUtils.releaseStatement(conn, sql, pstmt);
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.gusenov.github;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Буфер для поколоночного чтения результата запроса в массивы примитивов {@code int[]}/{@code long[]}/{@code double[]}.
+ *
+ * Буфер заполняется строками до ёмкости, после чего передаётся обработчику и переиспользуется,
+ * поэтому сканирование таблицы любого размера не упаковывает значения и не выделяет память на строку.
+ * NULL читается как 0, как в {@link ResultSet#getInt(int)}.
+ *
+ * @see SQLiteUtils#scan(java.sql.Connection, String, SQLiteUtils.QueryCriteria, ColumnarBatch, SQLiteUtils.IColumnarBatchHandler)
+ */
+public class ColumnarBatch {
+
+    public enum Type {
+        INT, LONG, DOUBLE
+    }
+
+    private final int capacity;
+
+    private String[] labels = new String[0];
+
+    private Type[] types = new Type[0];
+
+    private int[][] ints = new int[0][];
+
+    private long[][] longs = new long[0][];
+
+    private double[][] doubles = new double[0][];
+
+    private int size = 0;
+
+    /**
+     * @param capacity количество строк в одной порции.
+     */
+    public ColumnarBatch(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Добавить столбец.
+     *
+     * @param label наименование столбца.
+     * @param type  тип массива, в который читается столбец.
+     *
+     * @return номер столбца в буфере, начиная с 0.
+     */
+    public int addColumn(String label, Type type) {
+        int column = labels.length;
+        labels = Arrays.copyOf(labels, column + 1);
+        types = Arrays.copyOf(types, column + 1);
+        ints = Arrays.copyOf(ints, column + 1);
+        longs = Arrays.copyOf(longs, column + 1);
+        doubles = Arrays.copyOf(doubles, column + 1);
+        labels[column] = label;
+        types[column] = type;
+        switch (type) {
+            case INT:
+                ints[column] = new int[capacity];
+                break;
+            case LONG:
+                longs[column] = new long[capacity];
+                break;
+            case DOUBLE:
+                doubles[column] = new double[capacity];
+                break;
+        }
+        return column;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return количество строк в текущей порции.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public String getLabel(int column) {
+        return labels[column];
+    }
+
+    public Type getType(int column) {
+        return types[column];
+    }
+
+    /**
+     * @return массив столбца; заполнены первые {@link #getSize()} элементов.
+     */
+    public int[] getInts(int column) {
+        return ints[column];
+    }
+
+    public long[] getLongs(int column) {
+        return longs[column];
+    }
+
+    public double[] getDoubles(int column) {
+        return doubles[column];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Прочитать текущую строку результата.
+     *
+     * @param rs      результат запроса.
+     * @param columns индексы столбцов буфера в результате запроса.
+     */
+    void read(ResultSet rs, int[] columns) throws SQLException {
+        for (int column = 0; column < columns.length; column++) {
+            switch (types[column]) {
+                case INT:
+                    ints[column][size] = rs.getInt(columns[column]);
+                    break;
+                case LONG:
+                    longs[column][size] = rs.getLong(columns[column]);
+                    break;
+                case DOUBLE:
+                    doubles[column][size] = rs.getDouble(columns[column]);
+                    break;
+            }
+        }
+        size++;
+    }
+}
@@ -0,0 +1,26 @@
+package com.gusenov.github;
+
+/**
+ * Текстовые форматы обмена данными таблицы.
+ *
+ * @see TableTransfer
+ */
+public enum DataFormat {
+    /**
+     * CSV по RFC 4180: первая строка — наименования столбцов, разделитель — запятая, строки разделяются CRLF
+     * (при чтении также LF). Пустое поле без кавычек означает NULL, {@code ""} — пустую строку,
+     * поле {@code x'0001ff'} без кавычек — BLOB.
+     *
+     * @see <a href="https://tools.ietf.org/html/rfc4180">RFC 4180</a>
+     */
+    CSV,
+
+    /**
+     * Один JSON-объект на строку, значения — строки, числа, {@code true}/{@code false} и {@code null};
+     * вложенные объекты и массивы не поддерживаются. Строка {@code "x'0001ff'"} означает BLOB,
+     * если {@code x} в ней не экранирован.
+     *
+     * @see <a href="http://ndjson.org/">NDJSON</a>
+     */
+    NDJSON
+}
@@ -0,0 +1,388 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Асинхронная запись с групповой фиксацией: записи всех вызывающих собираются в очередь,
+ * а отдельный поток выполняет их пачками в одной транзакции.
+ *
+ * Пачка закрывается, когда набрано {@link Options#getMaxBatchSize()} записей или с момента постановки первой
+ * записи прошло {@link Options#getMaxLatencyMillis()} миллисекунд. Каждая запись выполняется внутри своей
+ * точки сохранения, поэтому ошибка одной записи не откатывает остальные. Результат записи становится
+ * доступен только после фиксации транзакции.
+ *
+ * @see <a href="https://www.sqlite.org/lang_savepoint.html">SAVEPOINT</a>
+ * @see <a href="https://en.wikipedia.org/wiki/Group_commit">Group commit</a>
+ */
+public class GroupCommitWriter implements AutoCloseable {
+
+    /**
+     * Параметры групповой фиксации.
+     */
+    public static class Options {
+        private int maxBatchSize = 256;
+
+        private long maxLatencyMillis = 5;
+
+        private int queueCapacity = 10000;
+
+        private long offerTimeoutMillis = Long.MAX_VALUE;
+
+        private boolean shutdownHook = false;
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        /**
+         * @param maxBatchSize максимальное количество записей в одной транзакции.
+         */
+        public Options setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public long getMaxLatencyMillis() {
+            return maxLatencyMillis;
+        }
+
+        /**
+         * @param maxLatencyMillis сколько первая запись пачки может ждать остальных.
+         */
+        public Options setMaxLatencyMillis(long maxLatencyMillis) {
+            this.maxLatencyMillis = maxLatencyMillis;
+            return this;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        /**
+         * @param queueCapacity максимальное количество записей в очереди.
+         */
+        public Options setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public long getOfferTimeoutMillis() {
+            return offerTimeoutMillis;
+        }
+
+        /**
+         * @param offerTimeoutMillis сколько вызывающий ждёт места в переполненной очереди, прежде чем запись
+         *                           будет отклонена с {@link RejectedExecutionException}.
+         */
+        public Options setOfferTimeoutMillis(long offerTimeoutMillis) {
+            this.offerTimeoutMillis = offerTimeoutMillis;
+            return this;
+        }
+
+        public boolean isShutdownHook() {
+            return shutdownHook;
+        }
+
+        /**
+         * @param shutdownHook зафиксировать очередь при завершении JVM.
+         */
+        public Options setShutdownHook(boolean shutdownHook) {
+            this.shutdownHook = shutdownHook;
+            return this;
+        }
+    }
+
+    private static final class Write<T> {
+        private final SQLitePool.IConnectionCallback<T> operation;
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private final long enqueuedNanos = System.nanoTime();
+
+        private T result;
+
+        private Throwable error;
+
+        Write(SQLitePool.IConnectionCallback<T> operation) {
+            this.operation = operation;
+        }
+
+        void run(Connection conn) {
+            try {
+                result = operation.run(conn);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+
+        void complete(Throwable batchError) {
+            if (batchError != null) {
+                future.completeExceptionally(batchError);
+            } else if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+
+    private final Connection conn;
+
+    private final SQLitePool pool;
+
+    private final Options options;
+
+    private final BlockingQueue<Write<?>> queue;
+
+    private final Thread thread;
+
+    private final Thread shutdownHook;
+
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    private volatile boolean closed = false;
+
+    private long batches = 0;
+
+    private long writes = 0;
+
+    /**
+     * Писать через выделенное соединение; другие потоки не должны писать через него.
+     */
+    public GroupCommitWriter(Connection conn, Options options) {
+        this(conn, null, options);
+    }
+
+    /**
+     * Писать через писателя пула: пачка ставится в его очередь как одна запись.
+     */
+    public GroupCommitWriter(SQLitePool pool, Options options) {
+        this(null, pool, options);
+    }
+
+    private GroupCommitWriter(Connection conn, SQLitePool pool, Options options) {
+        this.conn = conn;
+        this.pool = pool;
+        this.options = options;
+        this.queue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        this.thread = new Thread(this::loop, "sqlite-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        if (options.isShutdownHook()) {
+            this.shutdownHook = new Thread(this::close, "sqlite-group-commit-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            this.shutdownHook = null;
+        }
+    }
+
+    /**
+     * Поставить в очередь произвольную запись.
+     *
+     * @param operation действие над соединением; выполняется в потоке записи внутри общей транзакции.
+     */
+    public <T> CompletableFuture<T> submit(SQLitePool.IConnectionCallback<T> operation) {
+        Write<T> write = new Write<>(operation);
+        if (closed) {
+            write.future.completeExceptionally(new RejectedExecutionException("GroupCommitWriter is closed"));
+            return write.future;
+        }
+        try {
+            if (!queue.offer(write, options.getOfferTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                write.future.completeExceptionally(new RejectedExecutionException("GroupCommitWriter queue is full"));
+            } else if (closed && queue.remove(write)) {
+                // close() мог закончить разбор очереди между проверкой closed и offer
+                write.future.completeExceptionally(new RejectedExecutionException("GroupCommitWriter is closed"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.future.completeExceptionally(e);
+        }
+        return write.future;
+    }
+
+    /**
+     * @see SQLiteUtils#insert(Connection, String, SortedMap)
+     *
+     * @return количество вставленных строк.
+     */
+    public CompletableFuture<Integer> insert(String tableName, SortedMap<String, Object> values) {
+        SortedMap<String, Object> copy = new TreeMap<>(values);
+        return submit(c -> SQLiteUtils.executeInsert(c, tableName, copy));
+    }
+
+    /**
+     * @see SQLiteUtils#update(Connection, String, SortedMap, SortedMap)
+     *
+     * @return количество изменённых строк.
+     */
+    public CompletableFuture<Integer> update(String tableName, SortedMap<String, Object> values, SortedMap<String, Object> criterions) {
+        SortedMap<String, Object> valuesCopy = new TreeMap<>(values);
+        SortedMap<String, Object> criterionsCopy = new TreeMap<>(criterions);
+        return submit(c -> SQLiteUtils.executeUpdate(c, tableName, valuesCopy, criterionsCopy));
+    }
+
+    /**
+     * @see SQLiteUtils#delete(Connection, String, SQLiteUtils.QueryCriteria)
+     *
+     * @return количество удалённых строк.
+     */
+    public CompletableFuture<Integer> delete(String tableName, SQLiteUtils.QueryCriteria criterions) {
+        SQLiteUtils.QueryCriteria copy = criterions.copy();
+        return submit(c -> SQLiteUtils.executeDelete(c, tableName, copy));
+    }
+
+    /**
+     * Дождаться фиксации всех записей, поставленных до вызова.
+     */
+    public void flush() throws SQLException {
+        SQLitePool.await(submit(c -> null));
+    }
+
+    /**
+     * Задержка фиксации пачки: от начала выполнения до окончания COMMIT.
+     */
+    public LatencyHistogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    /**
+     * Задержка записи: от постановки в очередь до фиксации.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public int getPendingWrites() {
+        return queue.size();
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized double getAverageBatchSize() {
+        return batches > 0 ? (double) writes / batches : 0;
+    }
+
+    private void loop() {
+        List<Write<?>> batch = new ArrayList<>(options.getMaxBatchSize());
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Write<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.enqueuedNanos + options.getMaxLatencyMillis() * 1000000L;
+                while (batch.size() < options.getMaxBatchSize()) {
+                    long remaining = deadline - System.nanoTime();
+                    Write<?> next = remaining > 0 && !closed ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Write<?>> batch) {
+        long start = System.nanoTime();
+        Throwable batchError = null;
+        try {
+            if (pool != null) {
+                pool.write(c -> {
+                    runInTransaction(c, batch);
+                    return null;
+                });
+            } else {
+                runInTransaction(conn, batch);
+            }
+        } catch (Throwable e) {
+            batchError = e;
+            SQLiteUtils.getLogger().warning("Group commit of " + batch.size() + " writes failed: " + e);
+        }
+        long end = System.nanoTime();
+        batchLatency.record(end - start);
+        synchronized (this) {
+            batches++;
+            writes += batch.size();
+        }
+        for (Write<?> write : batch) {
+            writeLatency.record(end - write.enqueuedNanos);
+            write.complete(batchError);
+        }
+    }
+
+    private static void runInTransaction(Connection conn, List<Write<?>> batch) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            for (Write<?> write : batch) {
+                Savepoint savepoint = conn.setSavepoint();
+                write.run(conn);
+                if (write.error != null) {
+                    conn.rollback(savepoint);
+                }
+                conn.releaseSavepoint(savepoint);
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            SQLiteUtils.invalidateResultCacheAfterTransaction(conn);
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Перестать принимать записи, зафиксировать всё, что осталось в очереди, и остановить поток записи.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Write<?> late;
+        while ((late = queue.poll()) != null) {
+            late.future.completeExceptionally(new RejectedExecutionException("GroupCommitWriter is closed"));
+        }
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM уже завершается, хук выполняется
+            }
+        }
+    }
+}
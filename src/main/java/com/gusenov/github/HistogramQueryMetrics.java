@@ -0,0 +1,354 @@
+package com.gusenov.github;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Метрики запросов в памяти процесса: по каждой форме запроса — количество вызовов и ошибок,
+ * количество строк и гистограммы времени подготовки, выполнения и полной задержки.
+ * Запросы дольше порога и запросы с ошибкой сохраняются вместе с параметрами в кольцевой буфер.
+ *
+ * Формы запросов, построенных библиотекой, содержат {@code ?} вместо значений, поэтому их немного.
+ * Текстовые запросы со значениями внутри порождают новую форму на каждое значение, поэтому количество
+ * форм ограничено; сверх ограничения запросы учитываются в общей форме {@link #OTHER}.
+ */
+public class HistogramQueryMetrics implements IQueryMetrics, QueryMetricsMXBean {
+    /**
+     * Форма, в которой учитываются запросы сверх {@link #getMaxShapes()}.
+     */
+    public static final String OTHER = "<other>";
+
+    private static final class Shape {
+        private final LongAdder calls = new LongAdder();
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder rows = new LongAdder();
+
+        private final LatencyHistogram prepare = new LatencyHistogram();
+
+        private final LatencyHistogram execute = new LatencyHistogram();
+
+        private final LatencyHistogram total = new LatencyHistogram();
+    }
+
+    /**
+     * Снимок статистики одной формы запроса.
+     */
+    public static final class ShapeStats {
+        private final String sql;
+
+        private final long calls;
+
+        private final long errors;
+
+        private final long rows;
+
+        private final double prepareMeanMillis;
+
+        private final double executeMeanMillis;
+
+        private final double meanMillis;
+
+        private final double p50Millis;
+
+        private final double p99Millis;
+
+        private final double maxMillis;
+
+        private ShapeStats(String sql, Shape shape) {
+            this.sql = sql;
+            this.calls = shape.calls.sum();
+            this.errors = shape.errors.sum();
+            this.rows = shape.rows.sum();
+            this.prepareMeanMillis = shape.prepare.getMeanMillis();
+            this.executeMeanMillis = shape.execute.getMeanMillis();
+            this.meanMillis = shape.total.getMeanMillis();
+            this.p50Millis = shape.total.getPercentileMillis(50);
+            this.p99Millis = shape.total.getPercentileMillis(99);
+            this.maxMillis = shape.total.getMaxMillis();
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Прочитано строк для SELECT, изменено — для остальных запросов.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public double getPrepareMeanMillis() {
+            return prepareMeanMillis;
+        }
+
+        public double getExecuteMeanMillis() {
+            return executeMeanMillis;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        public String toString() {
+            return String.format("calls=%d, errors=%d, rows=%d, prepare=%.3fms, execute=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms: %s",
+                    calls, errors, rows, prepareMeanMillis, executeMeanMillis, p50Millis, p99Millis, maxMillis, sql);
+        }
+    }
+
+    /**
+     * Медленный или завершившийся ошибкой запрос.
+     */
+    public static final class SlowQuery {
+        private final String sql;
+
+        private final List<String> parameters;
+
+        private final double elapsedMillis;
+
+        private final long rows;
+
+        private final String error;
+
+        private final long timestamp = System.currentTimeMillis();
+
+        private SlowQuery(String sql, Iterable<Object> parameters, long elapsedNanos, long rows, String error) {
+            this.sql = sql;
+            this.parameters = new ArrayList<>();
+            for (Object value : parameters) {
+                this.parameters.add(value instanceof byte[] ? "byte[" + ((byte[]) value).length + "]" : String.valueOf(value));
+            }
+            this.elapsedMillis = elapsedNanos / 1e6;
+            this.rows = rows;
+            this.error = error;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public List<String> getParameters() {
+            return Collections.unmodifiableList(parameters);
+        }
+
+        public double getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return текст ошибки или {@code null}, если запрос выполнен успешно.
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return время записи в миллисекундах от начала эпохи.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String toString() {
+            return String.format("%.3fms, rows=%d: %s %s%s", elapsedMillis, rows, sql, parameters,
+                    error != null ? " " + error : "");
+        }
+    }
+
+    private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+
+    private final int maxShapes;
+
+    private final int slowQueryCapacity;
+
+    private final Deque<SlowQuery> slowQueries;
+
+    private volatile long slowQueryThresholdNanos = 100000000L;
+
+    private ObjectName objectName;
+
+    public HistogramQueryMetrics() {
+        this(1000, 100);
+    }
+
+    /**
+     * @param maxShapes         максимальное количество различаемых форм запросов.
+     * @param slowQueryCapacity сколько последних медленных запросов хранить.
+     */
+    public HistogramQueryMetrics(int maxShapes, int slowQueryCapacity) {
+        this.maxShapes = maxShapes;
+        this.slowQueryCapacity = slowQueryCapacity;
+        this.slowQueries = new ArrayDeque<>(slowQueryCapacity);
+    }
+
+    public int getMaxShapes() {
+        return maxShapes;
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdNanos / 1000000L;
+    }
+
+    /**
+     * @param slowQueryThresholdMillis запросы дольше порога сохраняются вместе с параметрами.
+     */
+    @Override
+    public void setSlowQueryThresholdMillis(long slowQueryThresholdMillis) {
+        this.slowQueryThresholdNanos = slowQueryThresholdMillis * 1000000L;
+    }
+
+    private Shape shape(String sql) {
+        Shape shape = shapes.get(sql);
+        if (shape == null) {
+            String key = shapes.size() < maxShapes ? sql : OTHER;
+            shape = shapes.computeIfAbsent(key, k -> new Shape());
+        }
+        return shape;
+    }
+
+    @Override
+    public void record(String sql, long prepareNanos, long executeNanos, long rows, Iterable<Object> parameters) {
+        Shape shape = shape(sql);
+        long elapsed = prepareNanos + executeNanos;
+        shape.calls.increment();
+        shape.rows.add(rows);
+        shape.prepare.record(prepareNanos);
+        shape.execute.record(executeNanos);
+        shape.total.record(elapsed);
+        if (elapsed >= slowQueryThresholdNanos) {
+            capture(new SlowQuery(sql, parameters, elapsed, rows, null));
+        }
+    }
+
+    @Override
+    public void recordFailure(String sql, long elapsedNanos, Iterable<Object> parameters, SQLException e) {
+        Shape shape = shape(sql);
+        shape.calls.increment();
+        shape.errors.increment();
+        shape.total.record(elapsedNanos);
+        capture(new SlowQuery(sql, parameters, elapsedNanos, 0, e.toString()));
+    }
+
+    private void capture(SlowQuery query) {
+        synchronized (slowQueries) {
+            if (slowQueries.size() >= slowQueryCapacity) {
+                slowQueries.pollLast();
+            }
+            slowQueries.offerFirst(query);
+        }
+    }
+
+    @Override
+    public long getTotalCalls() {
+        long calls = 0;
+        for (Shape shape : shapes.values()) {
+            calls += shape.calls.sum();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long errors = 0;
+        for (Shape shape : shapes.values()) {
+            errors += shape.errors.sum();
+        }
+        return errors;
+    }
+
+    @Override
+    public List<ShapeStats> getShapes() {
+        List<ShapeStats> stats = new ArrayList<>(shapes.size());
+        for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+            stats.add(new ShapeStats(entry.getKey(), entry.getValue()));
+        }
+        stats.sort(Comparator.comparingLong(ShapeStats::getCalls).reversed());
+        return stats;
+    }
+
+    /**
+     * @param sql текст или форма запроса.
+     *
+     * @return статистика формы или {@code null}, если запрос не выполнялся.
+     */
+    public ShapeStats getShape(String sql) {
+        Shape shape = shapes.get(sql);
+        return shape != null ? new ShapeStats(sql, shape) : null;
+    }
+
+    @Override
+    public List<SlowQuery> getSlowQueries() {
+        synchronized (slowQueries) {
+            return new ArrayList<>(slowQueries);
+        }
+    }
+
+    @Override
+    public void reset() {
+        shapes.clear();
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+    }
+
+    /**
+     * Зарегистрировать метрики в платформенном MBeanServer.
+     *
+     * @param name значение ключа {@code name}, отличающее несколько экземпляров.
+     *
+     * @return имя вида {@code com.gusenov.github:type=QueryMetrics,name=...}.
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName("com.gusenov.github:type=QueryMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.gusenov.github;
+
+import java.sql.SQLException;
+
+/**
+ * Приёмник метрик выполненных запросов, подключается через {@link SQLiteUtils#setQueryMetrics(IQueryMetrics)}.
+ *
+ * Методы вызываются в потоке запроса сразу после его выполнения, поэтому реализация должна быть быстрой
+ * и потокобезопасной. Параметры запроса передаются без копирования и доступны только во время вызова.
+ *
+ * @see HistogramQueryMetrics
+ */
+public interface IQueryMetrics {
+    /**
+     * Реализация по умолчанию: ничего не записывает.
+     */
+    IQueryMetrics NO_OP = new IQueryMetrics() {
+        @Override
+        public void record(String sql, long prepareNanos, long executeNanos, long rows, Iterable<Object> parameters) {
+        }
+
+        @Override
+        public void recordFailure(String sql, long elapsedNanos, Iterable<Object> parameters, SQLException e) {
+        }
+    };
+
+    /**
+     * @param sql          текст запроса; для запросов, построенных библиотекой, — его форма с {@code ?} вместо значений.
+     * @param prepareNanos время получения подготовленного запроса (почти ноль при попадании в кэш запросов).
+     * @param executeNanos время привязки параметров, выполнения и чтения результата.
+     * @param rows         количество прочитанных (SELECT) или изменённых строк.
+     * @param parameters   значения параметров в порядке привязки.
+     */
+    void record(String sql, long prepareNanos, long executeNanos, long rows, Iterable<Object> parameters);
+
+    /**
+     * @param sql          текст запроса.
+     * @param elapsedNanos время от начала запроса до ошибки.
+     * @param parameters   значения параметров в порядке привязки.
+     * @param e            ошибка выполнения.
+     */
+    void recordFailure(String sql, long elapsedNanos, Iterable<Object> parameters, SQLException e);
+}
@@ -0,0 +1,20 @@
+package com.gusenov.github;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Привязка значения одного типа к параметру подготовленного запроса.
+ *
+ * @param <T> тип значения.
+ *
+ * @see ValueBinders#register(Class, IValueBinder)
+ */
+public interface IValueBinder<T> {
+    /**
+     * @param pstmt подготовленный запрос.
+     * @param index номер параметра, начиная с 1.
+     * @param value значение, не {@code null}: NULL привязывается без обращения к привязчику.
+     */
+    void bind(PreparedStatement pstmt, int index, T value) throws SQLException;
+}
@@ -0,0 +1,233 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Советник по индексам: запоминает формы запросов с {@link SQLiteUtils.QueryCriteria}, выполненных через
+ * {@link SQLiteUtils} (select, delete, compileSelect, compileDelete), и по {@code EXPLAIN QUERY PLAN}
+ * находит среди них полные просмотры таблиц.
+ *
+ * Для каждого просмотра предлагается составной индекс: сначала столбцы условий на равенство,
+ * затем один столбец условия на диапазон. Условия {@code <>} индекс не ускоряет, а для условий с OR
+ * индекс не предлагается: SQLite может использовать отдельные индексы для каждой ветви OR.
+ *
+ * @see SQLiteUtils#setIndexAdvisor(IndexAdvisor)
+ * @see <a href="https://www.sqlite.org/eqp.html">EXPLAIN QUERY PLAN</a>
+ * @see <a href="https://www.sqlite.org/queryplanner.html">Query Planning</a>
+ */
+public class IndexAdvisor {
+
+    private static final class Usage {
+        private final String tableName;
+
+        private final List<String> columns;
+
+        private final boolean disjunctive;
+
+        private final LongAdder calls = new LongAdder();
+
+        Usage(String tableName, SQLiteUtils.QueryCriteria criterions) {
+            this.tableName = tableName;
+            this.columns = indexColumns(criterions);
+            this.disjunctive = criterions.isDisjunctive();
+        }
+    }
+
+    /**
+     * Найденный полный просмотр таблицы и индекс, который его устранит.
+     */
+    public static final class Advice {
+        private final String tableName;
+
+        private final List<String> columns;
+
+        private final List<String> queries = new ArrayList<>();
+
+        private final List<String> plans = new ArrayList<>();
+
+        private long calls = 0;
+
+        private Advice(String tableName, List<String> columns) {
+            this.tableName = tableName;
+            this.columns = columns;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        /**
+         * @return столбцы предлагаемого индекса; пустой список, если одним индексом просмотр не устранить.
+         */
+        public List<String> getColumns() {
+            return Collections.unmodifiableList(columns);
+        }
+
+        /**
+         * @return запросы с полным просмотром, которые ускорит индекс.
+         */
+        public List<String> getQueries() {
+            return Collections.unmodifiableList(queries);
+        }
+
+        /**
+         * @return строки {@code EXPLAIN QUERY PLAN} с просмотром таблицы.
+         */
+        public List<String> getPlans() {
+            return Collections.unmodifiableList(plans);
+        }
+
+        /**
+         * @return сколько раз выполнялись эти запросы с момента подключения советника.
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return наименование индекса по умолчанию: {@code idx_table_column1_column2}.
+         */
+        public String getIndexName() {
+            StringBuilder name = new StringBuilder("idx_").append(tableName);
+            for (String column : columns) {
+                name.append('_').append(column);
+            }
+            return name.toString();
+        }
+
+        /**
+         * @return запрос CREATE INDEX или {@code null}, если индекс не предлагается.
+         */
+        public String getCreateIndexSql() {
+            return columns.isEmpty() ? null : SQLBuilder.get().createIndex(getIndexName(), tableName, columns, false, null);
+        }
+
+        public String toString() {
+            return (columns.isEmpty() ? "No single index helps" : getCreateIndexSql()) + " (" + calls + " calls): " + plans;
+        }
+    }
+
+    private final Map<String, Usage> usages = new ConcurrentHashMap<>();
+
+    /**
+     * Запомнить выполнение запроса.
+     *
+     * @param tableName  наименование таблицы.
+     * @param criterions условие запроса.
+     * @param sql        текст запроса, построенный по условию.
+     */
+    void record(String tableName, SQLiteUtils.QueryCriteria criterions, String sql) {
+        if (criterions.getColumns().isEmpty()) {
+            return;
+        }
+        Usage usage = usages.get(sql);
+        if (usage == null) {
+            usage = usages.computeIfAbsent(sql, s -> new Usage(tableName, criterions));
+        }
+        usage.calls.increment();
+    }
+
+    /**
+     * @return количество различных запомненных форм запросов.
+     */
+    public int getRecordedQueries() {
+        return usages.size();
+    }
+
+    public void reset() {
+        usages.clear();
+    }
+
+    /**
+     * Сначала столбцы равенств в порядке появления, затем первый столбец диапазона; rowid не нужен индекс.
+     */
+    static List<String> indexColumns(SQLiteUtils.QueryCriteria criterions) {
+        List<String> columns = new ArrayList<>();
+        if (criterions.isDisjunctive()) {
+            return columns;
+        }
+        String range = null;
+        for (int i = 0; i < criterions.getColumns().size(); i++) {
+            String column = criterions.getColumns().get(i);
+            if (column.equalsIgnoreCase("rowid") || containsIgnoreCase(columns, column)) {
+                continue;
+            }
+            switch (criterions.getOperators().get(i)) {
+                case EQUALS:
+                    columns.add(column);
+                    break;
+                case NOT_EQUAL_TO:
+                    break;
+                default:
+                    if (range == null) {
+                        range = column;
+                    }
+                    break;
+            }
+        }
+        if (range != null && !containsIgnoreCase(columns, range)) {
+            columns.add(range);
+        }
+        return columns;
+    }
+
+    private static boolean containsIgnoreCase(List<String> columns, String column) {
+        for (String c : columns) {
+            if (c.equalsIgnoreCase(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Выполнить {@code EXPLAIN QUERY PLAN} для всех запомненных запросов и собрать советы.
+     *
+     * @param conn соединение с той же БД, в которой выполнялись запросы.
+     *
+     * @return советы по одному на предлагаемый индекс, самые частые запросы первыми.
+     */
+    public List<Advice> analyze(Connection conn) throws SQLException {
+        Map<String, Advice> advices = new LinkedHashMap<>();
+        for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+            String sql = entry.getKey();
+            Usage usage = entry.getValue();
+            List<String> scans = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+                 ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    if (detail != null && detail.startsWith("SCAN")) {
+                        scans.add(detail);
+                    }
+                }
+            }
+            if (scans.isEmpty()) {
+                continue;
+            }
+            List<String> columns = usage.disjunctive ? Collections.<String>emptyList() : usage.columns;
+            String key = usage.tableName.toLowerCase() + columns.toString().toLowerCase();
+            Advice advice = advices.get(key);
+            if (advice == null) {
+                advice = new Advice(usage.tableName, columns);
+                advices.put(key, advice);
+            }
+            advice.queries.add(sql);
+            advice.plans.addAll(scans);
+            advice.calls += usage.calls.sum();
+        }
+        List<Advice> result = new ArrayList<>(advices.values());
+        result.sort((a, b) -> Long.compare(b.calls, a.calls));
+        return result;
+    }
+}
@@ -0,0 +1,336 @@
+package com.gusenov.github;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Рабочая копия файла БД в памяти: при открытии файл целиком загружается в именованную БД в памяти
+ * с общим кэшем ({@code file:name?mode=memory&cache=shared}), запросы выполняются в памяти,
+ * а изменения сохраняются обратно в файл по расписанию и при закрытии.
+ *
+ * Обычная БД {@code :memory:} видна только открывшему её соединению, поэтому используется общий кэш:
+ * все соединения из {@link #connect()} и {@link #openPool(SQLitePool.Options)} работают с одной БД.
+ * БД существует, пока открыто хотя бы одно соединение, поэтому объект держит собственное соединение до закрытия.
+ * В общем кэше блокировки берутся на таблицы: запрос к таблице с незафиксированной записью другого соединения
+ * сразу получает SQLITE_LOCKED, busy_timeout на него не действует.
+ *
+ * Загрузка и сохранение выполняются командами sqlite-jdbc {@code restore from} и {@code backup to}
+ * (SQLite Online Backup API), сохранение перезаписывает файл целиком одной транзакцией.
+ * Изменения после последнего сохранения теряются при аварийном завершении процесса.
+ *
+ * @see <a href="https://www.sqlite.org/inmemorydb.html">In-Memory Databases</a>
+ * @see <a href="https://www.sqlite.org/sharedcache.html">SQLite Shared-Cache Mode</a>
+ * @see <a href="https://www.sqlite.org/pragma.html#pragma_data_version">PRAGMA data_version</a>
+ */
+public class MemoryDatabase implements AutoCloseable {
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Параметры БД в памяти.
+     */
+    public static class Options {
+        private String name = null;
+
+        private long flushIntervalMillis = 0;
+
+        private boolean flushOnClose = true;
+
+        private boolean shutdownHook = false;
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @param name имя БД в памяти, по которому к ней подключаются другие соединения процесса
+         *             (по умолчанию — уникальное для каждого объекта).
+         */
+        public Options setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public long getFlushIntervalMillis() {
+            return flushIntervalMillis;
+        }
+
+        /**
+         * @param flushIntervalMillis период сохранения в файл в миллисекундах (0 — не сохранять по расписанию).
+         *                            Если БД с прошлого сохранения не менялась, сохранение пропускается.
+         */
+        public Options setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        public boolean isFlushOnClose() {
+            return flushOnClose;
+        }
+
+        /**
+         * @param flushOnClose сохранять ли БД в файл при закрытии.
+         */
+        public Options setFlushOnClose(boolean flushOnClose) {
+            this.flushOnClose = flushOnClose;
+            return this;
+        }
+
+        public boolean isShutdownHook() {
+            return shutdownHook;
+        }
+
+        /**
+         * @param shutdownHook закрыть (и сохранить) БД при завершении JVM.
+         */
+        public Options setShutdownHook(boolean shutdownHook) {
+            this.shutdownHook = shutdownHook;
+            return this;
+        }
+    }
+
+    private final String fileName;
+
+    private final String url;
+
+    private final Options options;
+
+    private final Connection keeper;
+
+    private final long loadNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Thread shutdownHook;
+
+    private long savedVersion;
+
+    private long flushes = 0;
+
+    private long skippedFlushes = 0;
+
+    private long lastFlushNanos = 0;
+
+    private long totalFlushNanos = 0;
+
+    private volatile boolean closed = false;
+
+    public MemoryDatabase(String fileName) throws SQLException {
+        this(fileName, new Options());
+    }
+
+    /**
+     * Загрузить файл БД в память. Если файла нет, БД в памяти создаётся пустой, а файл появится при сохранении.
+     *
+     * @param fileName файл базы данных.
+     * @param options  параметры.
+     */
+    public MemoryDatabase(String fileName, Options options) throws SQLException {
+        if (fileName.indexOf('\'') >= 0) {
+            throw new IllegalArgumentException("File name must not contain quotes: " + fileName);
+        }
+        this.fileName = fileName;
+        this.options = options;
+        String name = options.getName() != null ? options.getName() : "sqlite-utils-memory-" + counter.incrementAndGet();
+        this.url = "jdbc:sqlite:file:" + name + "?mode=memory&cache=shared";
+        this.keeper = DriverManager.getConnection(url);
+        long start = System.nanoTime();
+        try {
+            if (new File(fileName).exists()) {
+                execute("restore from '" + fileName + "'");
+            }
+            this.savedVersion = dataVersion();
+        } catch (SQLException e) {
+            keeper.close();
+            throw e;
+        }
+        this.loadNanos = System.nanoTime() - start;
+        SQLiteUtils.getLogger().fine("Loaded " + fileName + " into memory in "
+                + TimeUnit.NANOSECONDS.toMillis(loadNanos) + " ms, " + getMemoryBytes() + " bytes");
+
+        if (options.getFlushIntervalMillis() > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "sqlite-memory-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::scheduledFlush, options.getFlushIntervalMillis(),
+                    options.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+        if (options.isShutdownHook()) {
+            this.shutdownHook = new Thread(this::close, "sqlite-memory-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            this.shutdownHook = null;
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return JDBC URL общей БД в памяти.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Новое соединение с БД в памяти; закрывает его вызывающий.
+     */
+    public Connection connect() throws SQLException {
+        if (closed) {
+            throw new SQLException("MemoryDatabase is closed");
+        }
+        return DriverManager.getConnection(url);
+    }
+
+    /**
+     * Пул соединений к БД в памяти. Режим WAL для БД в памяти недоступен, поэтому
+     * {@link SQLitePool.Options#setWalMode(boolean)} стоит выключить.
+     */
+    public SQLitePool openPool(SQLitePool.Options options) throws SQLException {
+        if (closed) {
+            throw new SQLException("MemoryDatabase is closed");
+        }
+        return SQLitePool.forUrl(url, options);
+    }
+
+    /**
+     * Сохранить БД в файл, если она изменилась с прошлого сохранения.
+     *
+     * @return {@code true}, если файл был перезаписан.
+     */
+    public synchronized boolean flush() throws SQLException {
+        long version = dataVersion();
+        if (version == savedVersion && new File(fileName).exists()) {
+            skippedFlushes++;
+            return false;
+        }
+        long start = System.nanoTime();
+        execute("backup to '" + fileName + "'");
+        lastFlushNanos = System.nanoTime() - start;
+        totalFlushNanos += lastFlushNanos;
+        flushes++;
+        savedVersion = version;
+        return true;
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            SQLiteUtils.logException(e);
+        }
+    }
+
+    /**
+     * Меняется при фиксации изменений любым соединением, кроме собственного; само оно БД не меняет.
+     */
+    private long dataVersion() throws SQLException {
+        try (Statement stmt = keeper.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA data_version;")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        long start = System.nanoTime();
+
+        try (Statement stmt = keeper.createStatement()) {
+            stmt.execute(sql);
+        } finally {
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+
+    /**
+     * @return время загрузки файла в память.
+     */
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * @return объём БД в памяти: {@code page_count * page_size}, без кэша и служебных структур SQLite.
+     */
+    public long getMemoryBytes() throws SQLException {
+        try (Statement stmt = keeper.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size();")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return сколько сохранений пропущено, потому что БД не менялась.
+     */
+    public synchronized long getSkippedFlushes() {
+        return skippedFlushes;
+    }
+
+    public synchronized long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    public synchronized long getTotalFlushNanos() {
+        return totalFlushNanos;
+    }
+
+    public String toString() {
+        return url + " <- " + fileName + ": loaded in " + TimeUnit.NANOSECONDS.toMillis(loadNanos) + " ms, "
+                + getFlushes() + " flushes";
+    }
+
+    /**
+     * Остановить сохранение по расписанию, сохранить БД (если включено {@link Options#setFlushOnClose(boolean)})
+     * и закрыть собственное соединение. БД в памяти удаляется, когда закрыто последнее соединение с ней.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (options.isFlushOnClose()) {
+                flush();
+            }
+        } catch (SQLException e) {
+            SQLiteUtils.logException(e);
+        } finally {
+            try {
+                keeper.close();
+            } catch (SQLException e) {
+                SQLiteUtils.logException(e);
+            }
+        }
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM уже завершается, хук выполняется
+            }
+        }
+    }
+}
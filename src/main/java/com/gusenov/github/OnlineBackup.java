@@ -0,0 +1,410 @@
+package com.gusenov.github;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Резервное копирование работающей БД без остановки записи.
+ *
+ * {@link #backup(Connection, String, Options)} присоединяет (ATTACH) файл копии к переданному соединению
+ * и копирует таблицы порциями по rowid с паузой между порциями. Всё копирование идёт в одной транзакции,
+ * поэтому копия согласована: она соответствует моменту первого чтения. В режиме WAL запись других соединений
+ * при этом не блокируется, но контрольная точка не может перенести в БД кадры новее снимка, поэтому файл WAL
+ * растёт до конца копирования. В режиме журнала отката транзакция чтения задерживает фиксацию других соединений
+ * до конца копирования, поэтому паузы между порциями делаются только в режиме WAL.
+ * Индексы и триггеры создаются после копирования данных.
+ *
+ * {@link #snapshot(Connection, String)} делает то же одним запросом {@code VACUUM INTO}, без пауз и хода копирования.
+ *
+ * @see <a href="https://www.sqlite.org/lang_attach.html">ATTACH DATABASE</a>
+ * @see <a href="https://www.sqlite.org/wal.html">Write-Ahead Logging</a>
+ * @see <a href="https://www.sqlite.org/lang_vacuum.html#vacuuminto">VACUUM INTO</a>
+ */
+public final class OnlineBackup {
+    private static final String SCHEMA = "online_backup";
+
+    /**
+     * Получатель хода копирования; вызывается после каждой порции в потоке копирования.
+     */
+    public interface IProgressListener {
+        /**
+         * @param rows      строк скопировано.
+         * @param totalRows всего строк во всех таблицах на момент начала копирования.
+         */
+        void progress(long rows, long totalRows);
+    }
+
+    /**
+     * Параметры резервного копирования.
+     */
+    public static class Options {
+        private int chunkRows = 1000;
+
+        private long pauseMillis = 10;
+
+        private IProgressListener progressListener = null;
+
+        public int getChunkRows() {
+            return chunkRows;
+        }
+
+        /**
+         * @param chunkRows количество строк, копируемых одним запросом.
+         */
+        public Options setChunkRows(int chunkRows) {
+            this.chunkRows = chunkRows;
+            return this;
+        }
+
+        public long getPauseMillis() {
+            return pauseMillis;
+        }
+
+        /**
+         * @param pauseMillis пауза после каждой порции в миллисекундах (0 — без пауз).
+         *                    Учитывается только в режиме WAL: в режиме журнала отката пауза лишь дольше
+         *                    задерживала бы фиксацию других соединений.
+         */
+        public Options setPauseMillis(long pauseMillis) {
+            this.pauseMillis = pauseMillis;
+            return this;
+        }
+
+        public IProgressListener getProgressListener() {
+            return progressListener;
+        }
+
+        public Options setProgressListener(IProgressListener progressListener) {
+            this.progressListener = progressListener;
+            return this;
+        }
+    }
+
+    /**
+     * Итог резервного копирования.
+     */
+    public static class Result {
+        private final int tables;
+
+        private final long rows;
+
+        private final long chunks;
+
+        private final long elapsedNanos;
+
+        private final long pausedNanos;
+
+        Result(int tables, long rows, long chunks, long elapsedNanos, long pausedNanos) {
+            this.tables = tables;
+            this.rows = rows;
+            this.chunks = chunks;
+            this.elapsedNanos = elapsedNanos;
+            this.pausedNanos = pausedNanos;
+        }
+
+        public int getTables() {
+            return tables;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return количество выполненных запросов копирования.
+         */
+        public long getChunks() {
+            return chunks;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return суммарная длительность пауз между порциями; 0, если БД не в режиме WAL.
+         */
+        public long getPausedNanos() {
+            return pausedNanos;
+        }
+
+        public String toString() {
+            return tables + " tables, " + rows + " rows in " + chunks + " chunks, "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms (" + TimeUnit.NANOSECONDS.toMillis(pausedNanos) + " ms paused)";
+        }
+    }
+
+    private static final class SchemaObject {
+        final String type;
+
+        final String name;
+
+        final String sql;
+
+        SchemaObject(String type, String name, String sql) {
+            this.type = type;
+            this.name = name;
+            this.sql = sql;
+        }
+    }
+
+    private OnlineBackup() {
+    }
+
+    /**
+     * Скопировать БД {@code main} соединения в новый файл; выполняется на вызывающем потоке.
+     * На время копирования соединение занято и не должно использоваться другими потоками.
+     * Виртуальные таблицы не поддерживаются.
+     *
+     * @param conn     соединение с исходной БД вне транзакции.
+     * @param fileName файл копии; не должен существовать или должен быть пустым.
+     * @param options  параметры копирования.
+     *
+     * @throws SQLException если копирование не удалось или поток был прерван во время паузы;
+     *                      незавершённая копия остаётся пустой.
+     */
+    public static Result backup(Connection conn, String fileName, Options options) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            throw new SQLException("Online backup needs a connection outside of a transaction");
+        }
+        File file = new File(fileName);
+        if (file.exists() && file.length() > 0) {
+            throw new SQLException("Backup file already exists: " + fileName);
+        }
+        long start = System.nanoTime();
+        try (PreparedStatement attach = conn.prepareStatement("ATTACH DATABASE ? AS " + SCHEMA + ";")) {
+            attach.setString(1, fileName);
+            attach.execute();
+        }
+        try {
+            execute(conn, "PRAGMA " + SCHEMA + ".page_size = " + queryLong(conn, "PRAGMA main.page_size;") + ";");
+            long pauseMillis = isWal(conn) ? options.getPauseMillis() : 0;
+            conn.setAutoCommit(false);
+            try {
+                Result result = copy(conn, options, pauseMillis, start);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            execute(conn, "DETACH DATABASE " + SCHEMA + ";");
+        }
+    }
+
+    public static Result backup(Connection conn, String fileName) throws SQLException {
+        return backup(conn, fileName, new Options());
+    }
+
+    private static Result copy(Connection conn, Options options, long pauseMillis, long start) throws SQLException {
+        // первое чтение в транзакции фиксирует снимок, который увидят все последующие запросы
+        List<SchemaObject> schema = new ArrayList<>();
+        boolean sequence = false;
+        String sql = "SELECT type, name, sql FROM main.sqlite_master WHERE sql IS NOT NULL ORDER BY rowid;";
+        long queryStart = System.nanoTime();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                SchemaObject object = new SchemaObject(rs.getString(1), rs.getString(2), rs.getString(3));
+                if (object.name.equals("sqlite_sequence")) {
+                    sequence = true;
+                } else if (!object.name.startsWith("sqlite_")) {
+                    if (object.sql.toUpperCase(Locale.ROOT).startsWith("CREATE VIRTUAL TABLE")) {
+                        throw new SQLException("Online backup does not support virtual table " + object.name);
+                    }
+                    schema.add(object);
+                }
+            }
+        } finally {
+            SQLiteUtils.logSql(sql, queryStart);
+        }
+
+        List<SchemaObject> tables = new ArrayList<>();
+        long totalRows = 0;
+        for (SchemaObject object : schema) {
+            if (object.type.equals("table")) {
+                tables.add(object);
+                execute(conn, qualify(object.sql, object.type));
+                totalRows += queryLong(conn, "SELECT count(*) FROM main." + quote(object.name) + ";");
+            }
+        }
+
+        long rows = 0;
+        long chunks = 0;
+        long pausedNanos = 0;
+        for (SchemaObject table : tables) {
+            List<String> columns = new ArrayList<>();
+            sql = "PRAGMA main.table_info(" + quote(table.name) + ");";
+            queryStart = System.nanoTime();
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    columns.add(quote(rs.getString("name")));
+                }
+            } finally {
+                SQLiteUtils.logSql(sql, queryStart);
+            }
+            StringBuilder list = new StringBuilder();
+            SQLBuilder.appendList(list, columns, ", ");
+            String target = SCHEMA + "." + quote(table.name);
+            String source = "main." + quote(table.name);
+
+            if (table.sql.toUpperCase(Locale.ROOT).replaceAll("\\s+", " ").contains("WITHOUT ROWID")) {
+                rows += execute(conn, "INSERT INTO " + target + "(" + list + ") SELECT " + list + " FROM " + source + ";");
+                chunks++;
+                notify(options, rows, totalRows);
+                continue;
+            }
+            sql = "INSERT INTO " + target + "(rowid, " + list + ") SELECT rowid, " + list + " FROM " + source
+                    + " WHERE rowid >= ? ORDER BY rowid LIMIT ?;";
+            String lastSql = "SELECT max(rowid) FROM " + target + ";";
+            long from = Long.MIN_VALUE;
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                while (true) {
+                    queryStart = System.nanoTime();
+                    int copied;
+                    try {
+                        pstmt.setLong(1, from);
+                        pstmt.setInt(2, options.getChunkRows());
+                        copied = pstmt.executeUpdate();
+                    } finally {
+                        SQLiteUtils.logSql(sql, queryStart);
+                    }
+                    if (copied == 0) {
+                        break;
+                    }
+                    rows += copied;
+                    chunks++;
+                    notify(options, rows, totalRows);
+                    if (copied < options.getChunkRows()) {
+                        break;
+                    }
+                    long last = queryLong(conn, lastSql);
+                    if (last == Long.MAX_VALUE) {
+                        break;
+                    }
+                    from = last + 1;
+                    pausedNanos += pause(pauseMillis);
+                }
+            }
+        }
+
+        if (sequence) {
+            execute(conn, "DELETE FROM " + SCHEMA + ".sqlite_sequence;");
+            execute(conn, "INSERT INTO " + SCHEMA + ".sqlite_sequence SELECT * FROM main.sqlite_sequence;");
+        }
+        for (SchemaObject object : schema) {
+            if (!object.type.equals("table")) {
+                execute(conn, qualify(object.sql, object.type));
+            }
+        }
+        execute(conn, "PRAGMA " + SCHEMA + ".user_version = " + queryLong(conn, "PRAGMA main.user_version;") + ";");
+        return new Result(tables.size(), rows, chunks, System.nanoTime() - start, pausedNanos);
+    }
+
+    /**
+     * Перенести объект схемы в присоединённую БД. SQLite хранит в sqlite_master текст CREATE
+     * с нормализованным началом ({@code CREATE TABLE name ...}, {@code CREATE UNIQUE INDEX name ...}),
+     * поэтому достаточно вставить имя схемы перед именем объекта.
+     */
+    static String qualify(String sql, String type) {
+        String upper = sql.toUpperCase(Locale.ROOT);
+        int index = upper.indexOf(type.toUpperCase(Locale.ROOT) + " ");
+        if (!upper.startsWith("CREATE ") || index < 0) {
+            throw new IllegalArgumentException("Unexpected schema statement: " + sql);
+        }
+        index += type.length() + 1;
+        return sql.substring(0, index) + SCHEMA + "." + sql.substring(index);
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private static void notify(Options options, long rows, long totalRows) {
+        IProgressListener listener = options.getProgressListener();
+        if (listener != null) {
+            listener.progress(rows, totalRows);
+        }
+    }
+
+    private static boolean isWal(Connection conn) throws SQLException {
+        String sql = "PRAGMA main.journal_mode;";
+        long start = System.nanoTime();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() && "wal".equalsIgnoreCase(rs.getString(1));
+        } finally {
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+
+    private static long pause(long millis) throws SQLException {
+        if (millis <= 0) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Online backup interrupted", e);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int execute(Connection conn, String sql) throws SQLException {
+        long start = System.nanoTime();
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+            return stmt.getUpdateCount();
+        } finally {
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+
+    private static long queryLong(Connection conn, String sql) throws SQLException {
+        long start = System.nanoTime();
+
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+
+    /**
+     * Записать сжатый снимок БД в новый файл одним запросом {@code VACUUM INTO}. Снимок согласован:
+     * он читается в одной транзакции чтения, и в режиме WAL запись других соединений при этом не блокируется.
+     * Требуется SQLite 3.27 или новее.
+     *
+     * @param conn     соединение с исходной БД.
+     * @param fileName файл снимка; не должен существовать или должен быть пустым.
+     */
+    public static void snapshot(Connection conn, String fileName) throws SQLException {
+        String sql = "VACUUM INTO ?;";
+        long start = System.nanoTime();
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            long prepared = System.nanoTime();
+            pstmt.setString(1, fileName);
+            pstmt.execute();
+            SQLiteUtils.recordQuery(sql, start, prepared, 0, Collections.<Object>singletonList(fileName));
+        } catch (SQLException e) {
+            SQLiteUtils.recordFailure(sql, start, Collections.<Object>singletonList(fileName), e);
+            throw e;
+        } finally {
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Параллельный обход таблицы: диапазон rowid (или целочисленного первичного ключа) делится на равные части,
+ * каждая часть читается отдельным соединением-читателем {@link SQLitePool} в своём потоке.
+ *
+ * Каждая часть — отдельная транзакция чтения, поэтому строки, изменённые во время обхода,
+ * могут быть прочитаны в одной части до изменения, а в другой — после. Строки, вставленные после
+ * определения границ диапазона с rowid больше максимального, не читаются.
+ *
+ * @see <a href="https://www.sqlite.org/lang_createtable.html#rowid">ROWIDs and the INTEGER PRIMARY KEY</a>
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/ForkJoinPool.html">ForkJoinPool</a>
+ */
+public class ParallelScan {
+
+    /**
+     * Параметры параллельного обхода.
+     */
+    public static class Options {
+        private int partitions = 0;
+
+        private String keyColumn = "rowid";
+
+        private int fetchSize = 0;
+
+        private ForkJoinPool forkJoinPool = null;
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * @param partitions количество частей (0 — по количеству читателей пула).
+         */
+        public Options setPartitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        public String getKeyColumn() {
+            return keyColumn;
+        }
+
+        /**
+         * @param keyColumn целочисленный столбец, по диапазонам которого делится таблица,
+         *                  например первичный ключ таблицы {@code WITHOUT ROWID}.
+         */
+        public Options setKeyColumn(String keyColumn) {
+            this.keyColumn = keyColumn;
+            return this;
+        }
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        /**
+         * @param fetchSize сколько строк драйвер читает за одно обращение (0 — значение драйвера по умолчанию).
+         */
+        public Options setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+
+        public ForkJoinPool getForkJoinPool() {
+            return forkJoinPool;
+        }
+
+        /**
+         * @param forkJoinPool пул потоков для {@link #forEach(Consumer)} (по умолчанию — отдельный пул
+         *                     на время обхода с числом потоков, равным количеству читателей).
+         */
+        public Options setForkJoinPool(ForkJoinPool forkJoinPool) {
+            this.forkJoinPool = forkJoinPool;
+            return this;
+        }
+    }
+
+    private final SQLitePool pool;
+
+    private final String tableName;
+
+    private final List<String> columns;
+
+    private final SQLiteUtils.QueryCriteria criterions;
+
+    private final Options options;
+
+    /**
+     * @param pool       пул, читатели которого выполняют части обхода.
+     * @param tableName  наименование таблицы.
+     * @param columns    наименования столбцов (пустой список — все столбцы).
+     * @param criterions дополнительное условие; к нему через AND добавляются границы части.
+     * @param options    параметры обхода.
+     */
+    public ParallelScan(SQLitePool pool, String tableName, List<String> columns,
+                        SQLiteUtils.QueryCriteria criterions, Options options) {
+        this.pool = pool;
+        this.tableName = tableName;
+        this.columns = columns;
+        this.criterions = criterions.copy();
+        this.options = options;
+    }
+
+    /**
+     * Условия частей: исходное условие в скобках и границы диапазона ключа.
+     */
+    List<SQLiteUtils.QueryCriteria> partition() throws SQLException {
+        String key = options.getKeyColumn();
+        long min;
+        long max;
+        Connection conn = pool.acquireReader();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT min(" + key + "), max(" + key + ") FROM " + tableName + ";")) {
+            rs.next();
+            if (rs.getObject(1) == null) {
+                return new ArrayList<>();
+            }
+            min = rs.getLong(1);
+            max = rs.getLong(2);
+        } finally {
+            pool.releaseReader(conn);
+        }
+
+        int partitions = options.getPartitions() > 0 ? options.getPartitions() : pool.getStats().getReaders();
+        long step;
+        try {
+            step = Math.max(1, Math.subtractExact(max, min) / partitions + 1);
+        } catch (ArithmeticException e) {
+            step = Long.MAX_VALUE;
+        }
+        List<SQLiteUtils.QueryCriteria> ranges = new ArrayList<>(partitions);
+        for (long lo = min; ; lo += step) {
+            SQLiteUtils.QueryCriteria range = criterions.copy().group().andGreaterThanOrEqualTo(key, lo);
+            if (max - lo < step) {
+                ranges.add(range.andLessThanOrEqualTo(key, max));
+                break;
+            }
+            ranges.add(range.andLessThan(key, lo + step));
+        }
+        return ranges;
+    }
+
+    private Stream<Row> open(SQLiteUtils.QueryCriteria range) {
+        Connection conn;
+        try {
+            conn = pool.acquireReader();
+        } catch (SQLException e) {
+            throw new UncheckedSQLException(e);
+        }
+        try {
+            return SQLiteUtils.iterate(conn, tableName, columns, range, options.getFetchSize()).stream()
+                    .onClose(() -> pool.releaseReader(conn));
+        } catch (RuntimeException e) {
+            pool.releaseReader(conn);
+            throw e;
+        }
+    }
+
+    /**
+     * Параллельный поток строк всех частей. Части выполняются в том {@link ForkJoinPool}, в котором
+     * вызвана завершающая операция потока (по умолчанию — общий пул).
+     *
+     * @throws UncheckedSQLException если не удалось определить границы или прочитать часть.
+     */
+    public Stream<Row> stream() {
+        try {
+            return partition().parallelStream().flatMap(this::open);
+        } catch (SQLException e) {
+            throw new UncheckedSQLException(e);
+        }
+    }
+
+    /**
+     * Передать все строки потокобезопасному обработчику и дождаться окончания обхода.
+     *
+     * @param consumer обработчик; вызывается одновременно из нескольких потоков.
+     *
+     * @return количество прочитанных строк.
+     */
+    public long forEach(Consumer<Row> consumer) throws SQLException {
+        List<SQLiteUtils.QueryCriteria> ranges = partition();
+        ForkJoinPool forkJoinPool = options.getForkJoinPool() != null
+                ? options.getForkJoinPool()
+                : new ForkJoinPool(Math.max(1, Math.min(ranges.size(), pool.getStats().getReaders())));
+        LongAdder rows = new LongAdder();
+        try {
+            forkJoinPool.submit(() -> ranges.parallelStream().flatMap(this::open).forEach(row -> {
+                consumer.accept(row);
+                rows.increment();
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while scanning " + tableName, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedSQLException) {
+                throw ((UncheckedSQLException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        } finally {
+            if (forkJoinPool != options.getForkJoinPool()) {
+                forkJoinPool.shutdown();
+            }
+        }
+        return rows.sum();
+    }
+}
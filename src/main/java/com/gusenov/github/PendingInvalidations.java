@@ -0,0 +1,137 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.sqlite.SQLiteCommitListener;
+import org.sqlite.SQLiteConnection;
+
+/**
+ * Таблицы, изменённые в ещё не завершённых транзакциях, для кэша результатов.
+ *
+ * Пока транзакция не зафиксирована, другие соединения читают прежние строки, поэтому результаты запросов
+ * к изменённой таблице не кэшируются, пока хотя бы одна транзакция с её изменениями не завершилась.
+ * Завершение отслеживается обработчиком фиксации SQLite ({@code sqlite3_commit_hook}), поэтому работает
+ * и для транзакций, которыми управляет вызывающий. Обработчик вызывается до того, как фиксация станет видна
+ * другим соединениям, поэтому таблица сбрасывается и снова разрешается к кэшированию в отдельном потоке,
+ * после того как соединение вернулось из фиксации.
+ *
+ * Соединения хранятся по слабым ссылкам; закрытые соединения с незавершённой транзакцией (её откатывает SQLite)
+ * удаляются при проверке.
+ *
+ * @see <a href="https://www.sqlite.org/c3ref/commit_hook.html">Commit And Rollback Notification Callbacks</a>
+ */
+final class PendingInvalidations {
+    private static final Map<Connection, Set<String>> pending = new WeakHashMap<>();
+
+    private static final Set<Connection> listening = Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+
+    /**
+     * Таблицы транзакций, для которых вызван обработчик фиксации, но фиксация ещё может быть не видна.
+     */
+    private static final Queue<Set<String>> committing = new ConcurrentLinkedQueue<>();
+
+    private static final ThreadPoolExecutor completions = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "sqlite-result-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        completions.allowCoreThreadTimeOut(true);
+    }
+
+    private PendingInvalidations() {
+    }
+
+    /**
+     * Запомнить таблицу, изменённую в транзакции соединения.
+     */
+    static void add(Connection conn, String tableName) throws SQLException {
+        boolean listen;
+        synchronized (pending) {
+            pending.computeIfAbsent(conn, c -> new HashSet<>()).add(tableName.toLowerCase());
+            listen = listening.add(conn);
+        }
+        if (listen && conn.isWrapperFor(SQLiteConnection.class)) {
+            SQLiteConnection sqlite = conn.unwrap(SQLiteConnection.class);
+            sqlite.addCommitListener(new SQLiteCommitListener() {
+                @Override
+                public void onCommit() {
+                    ended(conn, sqlite);
+                }
+
+                @Override
+                public void onRollback() {
+                    ended(conn, sqlite);
+                }
+            });
+        }
+    }
+
+    /**
+     * Транзакция завершена, и соединение уже вернулось из фиксации или отката.
+     *
+     * @return таблицы, изменённые в ней, или {@code null}.
+     */
+    static Set<String> remove(Connection conn) {
+        synchronized (pending) {
+            return pending.remove(conn);
+        }
+    }
+
+    /**
+     * Есть ли незавершённые изменения таблицы, из-за которых её результаты нельзя кэшировать.
+     */
+    static boolean contains(String tableName) {
+        String table = tableName.toLowerCase();
+        for (Set<String> tables : committing) {
+            if (tables.contains(table)) {
+                return true;
+            }
+        }
+        synchronized (pending) {
+            for (Iterator<Map.Entry<Connection, Set<String>>> i = pending.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<Connection, Set<String>> entry = i.next();
+                if (SQLiteUtils.isClosed(entry.getKey())) {
+                    i.remove();
+                } else if (entry.getValue().contains(table)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Вызывается из обработчика SQLite внутри фиксации или отката, пока поток соединения держит монитор его БД.
+     * Задача ждёт этот монитор, то есть возврата из фиксации, и только тогда сбрасывает таблицы.
+     */
+    private static void ended(Connection conn, SQLiteConnection sqlite) {
+        Set<String> tables = remove(conn);
+        if (tables == null) {
+            return;
+        }
+        committing.add(tables);
+        Object db = sqlite.getDatabase();
+        completions.execute(() -> {
+            synchronized (db) {
+                // фиксация завершена
+            }
+            tables.forEach(SQLiteUtils::invalidateResultCache);
+            committing.remove(tables);
+        });
+    }
+}
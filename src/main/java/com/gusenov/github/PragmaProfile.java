@@ -0,0 +1,125 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Наборы настроек PRAGMA под типовую нагрузку, применяемые при открытии соединения
+ * или на лету (например, BULK_LOAD на время ночной загрузки и обратно OLTP).
+ *
+ * {@code page_size} действует только для новой БД (до создания первой таблицы) или после VACUUM
+ * и не меняется в режиме WAL; {@code journal_mode} нельзя менять внутри транзакции.
+ * Фактические значения перечитываются после применения, расхождения попадают в отчёт и в журнал.
+ *
+ * @see <a href="https://www.sqlite.org/pragma.html">PRAGMA Statements</a>
+ * @see <a href="https://www.sqlite.org/mmap.html">Memory-Mapped I/O</a>
+ */
+public enum PragmaProfile {
+    /**
+     * Массовая загрузка: без журнала и fsync, большой кэш. Сбой во время загрузки может повредить БД,
+     * поэтому профиль предназначен для загрузки, которую можно повторить с нуля.
+     */
+    BULK_LOAD("OFF", "OFF", -262144, 268435456L, "MEMORY", 4096, 30000, false),
+
+    /**
+     * Смешанная нагрузка из коротких транзакций: WAL, synchronous=NORMAL.
+     */
+    OLTP("WAL", "NORMAL", -65536, 268435456L, "MEMORY", 4096, 5000, false),
+
+    /**
+     * Аналитическое чтение: крупные страницы, большой кэш и mmap, запись запрещена.
+     */
+    READ_ONLY_ANALYTICS("WAL", "NORMAL", -524288, 1073741824L, "MEMORY", 65536, 10000, true);
+
+    private final String journalMode;
+
+    private final String synchronous;
+
+    private final long cacheSize;
+
+    private final long mmapSize;
+
+    private final String tempStore;
+
+    private final int pageSize;
+
+    private final long busyTimeoutMillis;
+
+    private final boolean queryOnly;
+
+    PragmaProfile(String journalMode, String synchronous, long cacheSize, long mmapSize, String tempStore,
+                  int pageSize, long busyTimeoutMillis, boolean queryOnly) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+        this.tempStore = tempStore;
+        this.pageSize = pageSize;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+        this.queryOnly = queryOnly;
+    }
+
+    /**
+     * Настройки профиля в порядке применения: наименование PRAGMA и значение в том виде,
+     * в котором SQLite возвращает его при чтении.
+     */
+    public Map<String, String> getSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("page_size", String.valueOf(pageSize));
+        settings.put("journal_mode", journalMode.toLowerCase());
+        settings.put("synchronous", String.valueOf(indexOf(synchronous, "OFF", "NORMAL", "FULL", "EXTRA")));
+        settings.put("cache_size", String.valueOf(cacheSize));
+        settings.put("mmap_size", String.valueOf(mmapSize));
+        settings.put("temp_store", String.valueOf(indexOf(tempStore, "DEFAULT", "FILE", "MEMORY")));
+        settings.put("busy_timeout", String.valueOf(busyTimeoutMillis));
+        settings.put("query_only", queryOnly ? "1" : "0");
+        return settings;
+    }
+
+    /**
+     * Применить профиль к соединению и перечитать фактические значения.
+     *
+     * @param conn соединение с БД.
+     *
+     * @return фактические значения PRAGMA после применения.
+     */
+    public Map<String, String> apply(Connection conn) throws SQLException {
+        return apply(conn, Collections.<String>emptySet());
+    }
+
+    /**
+     * Применить профиль, кроме настроек {@code excluded}: их задаёт вызывающий (например, пул соединений
+     * выставляет {@code journal_mode} и {@code query_only} по роли соединения).
+     */
+    Map<String, String> apply(Connection conn, Set<String> excluded) throws SQLException {
+        Map<String, String> settings = getSettings();
+        settings.keySet().removeAll(excluded);
+        Map<String, String> actual = new LinkedHashMap<>();
+        try (Statement stmt = conn.createStatement()) {
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                stmt.execute("PRAGMA " + setting.getKey() + " = " + setting.getValue() + ";");
+            }
+            for (String pragma : settings.keySet()) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA " + pragma + ";")) {
+                    actual.put(pragma, rs.next() ? rs.getString(1) : null);
+                }
+            }
+        }
+        return actual;
+    }
+
+    private static int indexOf(String value, String... names) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(value)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(value);
+    }
+}
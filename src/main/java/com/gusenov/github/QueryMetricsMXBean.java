@@ -0,0 +1,31 @@
+package com.gusenov.github;
+
+import java.util.List;
+
+/**
+ * Метрики запросов, доступные через JMX (например, в JConsole или VisualVM).
+ *
+ * @see HistogramQueryMetrics#registerMBean(String)
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/javax/management/MXBean.html">MXBean</a>
+ */
+public interface QueryMetricsMXBean {
+    long getTotalCalls();
+
+    long getTotalErrors();
+
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long slowQueryThresholdMillis);
+
+    /**
+     * Статистика по формам запросов, самые частые первыми.
+     */
+    List<HistogramQueryMetrics.ShapeStats> getShapes();
+
+    /**
+     * Последние медленные и завершившиеся ошибкой запросы, самые новые первыми.
+     */
+    List<HistogramQueryMetrics.SlowQuery> getSlowQueries();
+
+    void reset();
+}
@@ -0,0 +1,284 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Кэш результатов запросов SELECT к редко изменяемым таблицам, подключается через
+ * {@link SQLiteUtils#setResultCache(ResultCache)} и используется {@link SQLiteUtils#selectCached}.
+ *
+ * Ключ — адрес БД, текст запроса (таблица, столбцы, условие) и значения параметров. Размер ограничен
+ * суммарным приблизительным весом строк в байтах, при превышении вытесняются давно не использованные результаты;
+ * результаты старше TTL не выдаются. Вставка, изменение и удаление через {@link SQLiteUtils} сбрасывают
+ * результаты по таблице во всех БД.
+ *
+ * Изменение внутри транзакции сбрасывает таблицу сразу и ещё раз после фиксации или отката; пока транзакция
+ * не завершена, результаты запросов к таблице не кэшируются, потому что другие соединения читают прежние строки.
+ * Завершение транзакции sqlite-jdbc отслеживается обработчиком фиксации, в том числе для транзакций вызывающего;
+ * для соединений других драйверов — только для транзакций, которыми управляет библиотека
+ * ({@link SQLiteUtils#upsertAll}, {@link GroupCommitWriter}, {@link SQLitePool#submitWrite}, {@link BatchInserter}).
+ * Изменения, сделанные в обход {@link SQLiteUtils} (текстовым SQL, другим процессом), кэш не видит:
+ * такие результаты остаются до истечения TTL или явного сброса.
+ *
+ * @see <a href="https://en.wikipedia.org/wiki/Cache_replacement_policies#LRU">Least recently used</a>
+ */
+public class ResultCache {
+    private static final class Key {
+        private final String url;
+
+        private final String sql;
+
+        private final Object[] values;
+
+        private final int hash;
+
+        Key(String url, String sql, Object[] values) {
+            this.url = url;
+            this.sql = sql;
+            this.values = values;
+            this.hash = 31 * (31 * url.hashCode() + sql.hashCode()) + Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && sql.equals(other.sql) && url.equals(other.url)
+                    && Arrays.deepEquals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final String table;
+
+        private final List<Row> rows;
+
+        private final long weight;
+
+        private final long expiresAtNanos;
+
+        Entry(String table, List<Row> rows, long weight, long expiresAtNanos) {
+            this.table = table;
+            this.rows = rows;
+            this.weight = weight;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final long maxWeight;
+
+    private final long ttlNanos;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Set<Key>> keysByTable = new HashMap<>();
+
+    private final Map<String, Long> generations = new HashMap<>();
+
+    private long weight = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    private long expirations = 0;
+
+    private long invalidations = 0;
+
+    /**
+     * @param maxWeight максимальный суммарный вес результатов в байтах (приблизительно).
+     * @param ttlMillis сколько результат остаётся действительным (0 — без ограничения).
+     */
+    public ResultCache(long maxWeight, long ttlMillis) {
+        this.maxWeight = maxWeight;
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    /**
+     * Выдать результат из кэша или выполнить запрос и сохранить результат.
+     */
+    List<Row> get(Connection conn, String tableName, String sql, List<Object> values) throws SQLException {
+        Key key = new Key(conn.getMetaData().getURL(), sql, values.toArray());
+        String table = tableName.toLowerCase();
+        long generation;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.expiresAtNanos > 0) {
+                remove(key, entry);
+                expirations++;
+                entry = null;
+            }
+            if (entry != null) {
+                hits++;
+                return entry.rows;
+            }
+            misses++;
+            generation = generations.getOrDefault(table, 0L);
+        }
+        List<Row> rows = SQLiteUtils.readRows(conn, sql, values);
+        put(key, table, generation, rows);
+        return rows;
+    }
+
+    private void put(Key key, String table, long generation, List<Row> rows) {
+        // таблица изменена в незавершённой транзакции: после фиксации результат устареет
+        if (!PendingInvalidations.contains(table)) {
+            store(key, table, generation, rows);
+        }
+    }
+
+    private synchronized void store(Key key, String table, long generation, List<Row> rows) {
+        // таблица изменилась, пока выполнялся запрос: результат мог устареть
+        if (generations.getOrDefault(table, 0L) != generation) {
+            return;
+        }
+        long rowsWeight = weigh(key, rows);
+        if (rowsWeight > maxWeight) {
+            return;
+        }
+        Entry previous = entries.get(key);
+        if (previous != null) {
+            remove(key, previous);
+        }
+        entries.put(key, new Entry(table, rows, rowsWeight, System.nanoTime() + ttlNanos));
+        keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+        weight += rowsWeight;
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Map.Entry<Key, Entry> e = eldest.next();
+            eldest.remove();
+            forget(e.getKey(), e.getValue());
+            evictions++;
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        forget(key, entry);
+    }
+
+    private void forget(Key key, Entry entry) {
+        weight -= entry.weight;
+        Set<Key> keys = keysByTable.get(entry.table);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByTable.remove(entry.table);
+            }
+        }
+    }
+
+    /**
+     * Сбросить результаты запросов к таблице во всех БД.
+     *
+     * @param tableName наименование таблицы (без учёта регистра).
+     */
+    public synchronized void invalidate(String tableName) {
+        String table = tableName.toLowerCase();
+        generations.merge(table, 1L, Long::sum);
+        Set<Key> keys = keysByTable.remove(table);
+        if (keys != null) {
+            for (Key key : keys) {
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    weight -= entry.weight;
+                }
+            }
+            invalidations += keys.size();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        for (String table : keysByTable.keySet()) {
+            generations.merge(table, 1L, Long::sum);
+        }
+        invalidations += entries.size();
+        entries.clear();
+        keysByTable.clear();
+        weight = 0;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized String toString() {
+        return String.format("size=%d, weight=%d/%d, hitRatio=%.3f, hits=%d, misses=%d, evictions=%d, expirations=%d, invalidations=%d",
+                entries.size(), weight, maxWeight, getHitRatio(), hits, misses, evictions, expirations, invalidations);
+    }
+
+    /**
+     * Приблизительный размер результата в памяти: заголовки объектов и содержимое строк и массивов.
+     */
+    private static long weigh(Key key, List<Row> rows) {
+        long weight = 64 + 2L * key.sql.length() + 16L * key.values.length;
+        for (Row row : rows) {
+            int count = row.getColumns().getCount();
+            weight += 32 + 8L * count;
+            for (int i = 1; i <= count; i++) {
+                Object value = row.get(i);
+                if (value instanceof String) {
+                    weight += 40 + 2L * ((String) value).length();
+                } else if (value instanceof byte[]) {
+                    weight += 16 + ((byte[]) value).length;
+                } else if (value != null) {
+                    weight += 16;
+                }
+            }
+        }
+        return weight;
+    }
+}
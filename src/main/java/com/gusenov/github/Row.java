@@ -0,0 +1,159 @@
+package com.gusenov.github;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Неизменяемый снимок одной строки результата запроса.
+ *
+ * Наименования столбцов и их индексы общие для всех строк одного запроса. Индексы начинаются с 1, как в JDBC.
+ */
+public final class Row {
+
+    /**
+     * Наименования столбцов результата запроса.
+     */
+    public static final class Columns {
+        private final String[] labels;
+
+        private final Map<String, Integer> indexes;
+
+        Columns(String[] labels) {
+            this.labels = labels;
+            this.indexes = new HashMap<>(labels.length * 2);
+            for (int i = labels.length - 1; i >= 0; i--) {
+                indexes.put(labels[i], i + 1);
+                indexes.put(labels[i].toLowerCase(), i + 1);
+            }
+        }
+
+        static Columns of(ResultSet rs) throws SQLException {
+            ResultSetMetaData meta = rs.getMetaData();
+            String[] labels = new String[meta.getColumnCount()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = meta.getColumnLabel(i + 1);
+            }
+            return new Columns(labels);
+        }
+
+        public int getCount() {
+            return labels.length;
+        }
+
+        public String getLabel(int index) {
+            return labels[index - 1];
+        }
+
+        /**
+         * @param label наименование столбца (без учёта регистра).
+         *
+         * @return индекс столбца, начиная с 1.
+         */
+        public int indexOf(String label) {
+            Integer index = indexes.get(label);
+            if (index == null) {
+                index = indexes.get(label.toLowerCase());
+            }
+            if (index == null) {
+                throw new IllegalArgumentException("No such column: " + label);
+            }
+            return index;
+        }
+    }
+
+    private final Columns columns;
+
+    private final Object[] values;
+
+    Row(Columns columns, Object[] values) {
+        this.columns = columns;
+        this.values = values;
+    }
+
+    static Row read(Columns columns, ResultSet rs) throws SQLException {
+        Object[] values = new Object[columns.getCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rs.getObject(i + 1);
+        }
+        return new Row(columns, values);
+    }
+
+    public Columns getColumns() {
+        return columns;
+    }
+
+    public Object get(int index) {
+        return values[index - 1];
+    }
+
+    public Object get(String label) {
+        return get(columns.indexOf(label));
+    }
+
+    public String getString(int index) {
+        Object value = get(index);
+        return value == null ? null : value.toString();
+    }
+
+    public String getString(String label) {
+        return getString(columns.indexOf(label));
+    }
+
+    /**
+     * @return значение как long или 0 для NULL, как {@link ResultSet#getLong(int)}.
+     */
+    public long getLong(int index) {
+        Object value = get(index);
+        return value instanceof Number ? ((Number) value).longValue() : value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    public long getLong(String label) {
+        return getLong(columns.indexOf(label));
+    }
+
+    public int getInt(int index) {
+        return (int) getLong(index);
+    }
+
+    public int getInt(String label) {
+        return getInt(columns.indexOf(label));
+    }
+
+    /**
+     * @return значение как double или 0 для NULL, как {@link ResultSet#getDouble(int)}.
+     */
+    public double getDouble(int index) {
+        Object value = get(index);
+        return value instanceof Number ? ((Number) value).doubleValue() : value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    public double getDouble(String label) {
+        return getDouble(columns.indexOf(label));
+    }
+
+    public byte[] getBytes(int index) {
+        return (byte[]) get(index);
+    }
+
+    public byte[] getBytes(String label) {
+        return getBytes(columns.indexOf(label));
+    }
+
+    public boolean isNull(int index) {
+        return get(index) == null;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(columns.labels[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
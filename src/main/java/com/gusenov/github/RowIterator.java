@@ -0,0 +1,106 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Ленивый обход открытого {@link ResultSet}: строки читаются из БД по мере вызова {@link #next()}.
+ *
+ * Запрос и результат закрываются после последней строки или при вызове {@link #close()},
+ * поэтому при досрочном прекращении обхода итератор нужно закрыть (например, через try-with-resources).
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/sql/Statement.html#setFetchSize-int-">Statement.setFetchSize</a>
+ */
+public class RowIterator implements Iterator<Row>, AutoCloseable {
+    private final Connection conn;
+
+    private final String sql;
+
+    private final PreparedStatement pstmt;
+
+    private final ResultSet rs;
+
+    private final Row.Columns columns;
+
+    private Boolean hasNext;
+
+    private boolean closed = false;
+
+    RowIterator(Connection conn, String sql, PreparedStatement pstmt) throws SQLException {
+        this.conn = conn;
+        this.sql = sql;
+        this.pstmt = pstmt;
+        this.rs = pstmt.executeQuery();
+        this.columns = Row.Columns.of(rs);
+    }
+
+    public Row.Columns getColumns() {
+        return columns;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (hasNext == null) {
+            if (closed) {
+                return false;
+            }
+            try {
+                hasNext = rs.next();
+            } catch (SQLException e) {
+                close();
+                throw new UncheckedSQLException(e);
+            }
+            if (!hasNext) {
+                close();
+            }
+        }
+        return hasNext;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasNext = null;
+        try {
+            return Row.read(columns, rs);
+        } catch (SQLException e) {
+            close();
+            throw new UncheckedSQLException(e);
+        }
+    }
+
+    /**
+     * Последовательный поток строк, закрывающий итератор при {@link Stream#close()}.
+     */
+    public Stream<Row> stream() {
+        Spliterator<Row> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        hasNext = false;
+        try {
+            rs.close();
+        } catch (SQLException e) {
+            SQLiteUtils.getLogger().fine("Failed to close result set: " + e.getMessage());
+        } finally {
+            SQLiteUtils.releaseStatement(conn, sql, pstmt);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.gusenov.github;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Генерация текста SQL-запросов без {@code String.format} и упаковки индексов.
+ *
+ * Запрос собирается в переиспользуемый буфер потока. Для каждого вида запроса запоминается последняя форма
+ * (таблица, столбцы, условие): если она совпадает с предыдущим вызовом, возвращается та же строка,
+ * и в установившемся режиме генерация SQL не выделяет память.
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/lang/ThreadLocal.html">ThreadLocal</a>
+ */
+final class SQLBuilder {
+    private static final ThreadLocal<SQLBuilder> local = new ThreadLocal<SQLBuilder>() {
+        @Override
+        protected SQLBuilder initialValue() {
+            return new SQLBuilder();
+        }
+    };
+
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    private final Shape insertShape = new Shape();
+
+    private final Shape updateShape = new Shape();
+
+    private final Shape selectShape = new Shape();
+
+    private final Shape deleteShape = new Shape();
+
+    private final Shape upsertShape = new Shape();
+
+    private Upsert upsert;
+
+    private int upsertVersion;
+
+    private int upsertRows;
+
+    private SQLBuilder() {
+    }
+
+    static SQLBuilder get() {
+        return local.get();
+    }
+
+    /**
+     * Последняя сгенерированная форма запроса.
+     */
+    private static final class Shape {
+        private String table;
+
+        private String[] columns;
+
+        private String[] criterions;
+
+        private String where;
+
+        private String sql;
+
+        boolean matches(String table, Iterable<String> columns, Iterable<String> criterions, CharSequence where) {
+            return sql != null
+                    && this.table.equals(table)
+                    && sameColumns(this.columns, columns)
+                    && sameColumns(this.criterions, criterions)
+                    && (where == null ? this.where == null : this.where != null && this.where.contentEquals(where));
+        }
+
+        String remember(String table, Iterable<String> columns, int columnCount,
+                        Iterable<String> criterions, int criterionCount, CharSequence where, String sql) {
+            this.table = table;
+            this.columns = toArray(columns, columnCount);
+            this.criterions = toArray(criterions, criterionCount);
+            this.where = where == null ? null : where.toString();
+            this.sql = sql;
+            return sql;
+        }
+
+        private static boolean sameColumns(String[] remembered, Iterable<String> columns) {
+            if (columns == null) {
+                return remembered == null;
+            }
+            if (remembered == null) {
+                return false;
+            }
+            int index = 0;
+            for (String column : columns) {
+                if (index == remembered.length || !remembered[index++].equals(column)) {
+                    return false;
+                }
+            }
+            return index == remembered.length;
+        }
+
+        private static String[] toArray(Iterable<String> columns, int count) {
+            if (columns == null) {
+                return null;
+            }
+            String[] array = new String[count];
+            int index = 0;
+            for (String column : columns) {
+                array[index++] = column;
+            }
+            return array;
+        }
+    }
+
+    private StringBuilder reset() {
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * CREATE TABLE IF NOT EXISTS tableName (column datatype, ...);
+     */
+    String createTable(String tableName, SortedMap<String, String> columns) {
+        StringBuilder sql = reset().append("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (\n");
+        int index = 0;
+        int last = columns.size() - 1;
+        for (Map.Entry<String, String> entry : columns.entrySet()) {
+            sql.append('\t').append(entry.getKey()).append(' ').append(entry.getValue());
+            sql.append(index++ == last ? "\n" : ",\n");
+        }
+        return sql.append(");").toString();
+    }
+
+    /**
+     * CREATE [UNIQUE] INDEX IF NOT EXISTS indexName ON tableName (column, ...) [WHERE where];
+     */
+    String createIndex(String indexName, String tableName, List<String> columns, boolean unique, String where) {
+        StringBuilder sql = reset().append(unique ? "CREATE UNIQUE INDEX" : "CREATE INDEX");
+        sql.append(" IF NOT EXISTS ").append(indexName).append(" ON ").append(tableName).append(" (");
+        appendList(sql, columns, ", ");
+        sql.append(')');
+        if (where != null && !where.isEmpty()) {
+            sql.append(" WHERE ").append(where);
+        }
+        return sql.append(';').toString();
+    }
+
+    /**
+     * DROP INDEX IF EXISTS indexName;
+     */
+    String dropIndex(String indexName) {
+        return reset().append("DROP INDEX IF EXISTS ").append(indexName).append(';').toString();
+    }
+
+    /**
+     * INSERT INTO tableName(column, ...) VALUES(?, ...);
+     */
+    String insert(String tableName, SortedMap<String, ?> values) {
+        if (insertShape.matches(tableName, values.keySet(), null, null)) {
+            return insertShape.sql;
+        }
+        StringBuilder sql = reset().append("INSERT INTO ").append(tableName).append('(');
+        appendList(sql, values.keySet(), ", ");
+        sql.append(") VALUES(");
+        appendPlaceholders(sql, values.size());
+        sql.append(");");
+        return insertShape.remember(tableName, values.keySet(), values.size(), null, 0, null, sql.toString());
+    }
+
+    /**
+     * INSERT INTO tableName(column, ...) VALUES(?, ...), ... ON CONFLICT(target, ...) DO UPDATE SET column = ..., ...;
+     */
+    String upsert(String tableName, SortedMap<String, ?> values, int rows, Upsert upsert) {
+        if (this.upsert == upsert && upsertVersion == upsert.getVersion() && upsertRows == rows
+                && upsertShape.matches(tableName, values.keySet(), null, null)) {
+            return upsertShape.sql;
+        }
+        StringBuilder sql = reset().append("INSERT INTO ").append(tableName).append('(');
+        appendList(sql, values.keySet(), ", ");
+        sql.append(") VALUES");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "(" : ", (");
+            appendPlaceholders(sql, values.size());
+            sql.append(')');
+        }
+        sql.append(" ON CONFLICT(");
+        appendList(sql, upsert.getConflictColumns(), ", ");
+        sql.append(") DO ");
+        int length = sql.length();
+        sql.append("UPDATE SET ");
+        boolean first = true;
+        for (String column : values.keySet()) {
+            if (upsert.getConflictColumns().contains(column)) {
+                continue;
+            }
+            Upsert.Policy policy = upsert.getPolicy(column);
+            if (policy == Upsert.Policy.KEEP) {
+                continue;
+            }
+            if (!first) {
+                sql.append(", ");
+            }
+            sql.append(column).append(" = ");
+            switch (policy) {
+                case COALESCE:
+                    sql.append("coalesce(excluded.").append(column).append(", ").append(column).append(')');
+                    break;
+                case ADD:
+                    sql.append(column).append(" + excluded.").append(column);
+                    break;
+                default:
+                    sql.append("excluded.").append(column);
+                    break;
+            }
+            first = false;
+        }
+        if (first) {
+            sql.setLength(length);
+            sql.append("NOTHING");
+        }
+        sql.append(';');
+        this.upsert = upsert;
+        this.upsertVersion = upsert.getVersion();
+        this.upsertRows = rows;
+        return upsertShape.remember(tableName, values.keySet(), values.size(), null, 0, null, sql.toString());
+    }
+
+    /**
+     * UPDATE tableName SET column = ?, ... WHERE criterion = ? AND ...
+     */
+    String update(String tableName, SortedMap<String, ?> values, SortedMap<String, ?> criterions) {
+        if (updateShape.matches(tableName, values.keySet(), criterions.keySet(), null)) {
+            return updateShape.sql;
+        }
+        StringBuilder sql = reset().append("UPDATE ").append(tableName).append(" SET ");
+        appendAssignments(sql, values.keySet(), ", ");
+        if (criterions.size() > 0) {
+            sql.append(" WHERE ");
+            appendAssignments(sql, criterions.keySet(), " AND ");
+        }
+        return updateShape.remember(tableName, values.keySet(), values.size(),
+                criterions.keySet(), criterions.size(), null, sql.toString());
+    }
+
+    /**
+     * SELECT column, ... FROM tableName WHERE criteria
+     */
+    String select(String tableName, List<String> columns, CharSequence where) {
+        if (selectShape.matches(tableName, columns, null, where)) {
+            return selectShape.sql;
+        }
+        StringBuilder sql = reset().append("SELECT ");
+        if (columns.size() > 0) {
+            appendList(sql, columns, ", ");
+        } else {
+            sql.append('*');
+        }
+        sql.append(" FROM ").append(tableName);
+        appendWhere(sql, where);
+        return selectShape.remember(tableName, columns, columns.size(), null, 0, where, sql.toString());
+    }
+
+    /**
+     * DELETE FROM tableName WHERE criteria;
+     *
+     * @throws IllegalArgumentException если условие пустое: такой запрос удалил бы все строки таблицы.
+     */
+    String delete(String tableName, CharSequence where) {
+        if (deleteShape.matches(tableName, null, null, where)) {
+            return deleteShape.sql;
+        }
+        if (where == null || where.length() == 0) {
+            throw new IllegalArgumentException("DELETE from " + tableName + " without criteria would remove all rows");
+        }
+        StringBuilder sql = reset().append("DELETE FROM ").append(tableName);
+        appendWhere(sql, where);
+        sql.append(';');
+        return deleteShape.remember(tableName, null, 0, null, 0, where, sql.toString());
+    }
+
+    static void appendList(StringBuilder sql, Iterable<String> items, String separator) {
+        boolean first = true;
+        for (String item : items) {
+            if (!first) {
+                sql.append(separator);
+            }
+            sql.append(item);
+            first = false;
+        }
+    }
+
+    static void appendPlaceholders(StringBuilder sql, int count) {
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+    }
+
+    private static void appendAssignments(StringBuilder sql, Iterable<String> columns, String separator) {
+        boolean first = true;
+        for (String column : columns) {
+            if (!first) {
+                sql.append(separator);
+            }
+            sql.append(column).append(" = ?");
+            first = false;
+        }
+    }
+
+    private static void appendWhere(StringBuilder sql, CharSequence where) {
+        if (where != null && where.length() > 0) {
+            sql.append(" WHERE ").append(where);
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул соединений для SQLite: одно соединение-писатель и N соединений-читателей в режиме WAL.
+ *
+ * Все записи выполняются по очереди в отдельном потоке писателя, поэтому конкурирующие писатели
+ * не получают SQLITE_BUSY и не повторяют попытки. Читатели открыты с {@code PRAGMA query_only}
+ * и в режиме WAL работают параллельно друг с другом и с писателем.
+ *
+ * @see <a href="https://www.sqlite.org/wal.html">Write-Ahead Logging</a>
+ * @see <a href="https://www.sqlite.org/pragma.html#pragma_query_only">PRAGMA query_only</a>
+ */
+public class SQLitePool implements AutoCloseable {
+
+    /**
+     * Параметры пула.
+     */
+    public static class Options {
+        private int readers = Runtime.getRuntime().availableProcessors();
+
+        private boolean walMode = true;
+
+        private long busyTimeoutMillis = 5000;
+
+        private long acquireTimeoutMillis = 30000;
+
+        private long validationIdleMillis = 30000;
+
+        private int writeQueueCapacity = 10000;
+
+        private PragmaProfile pragmaProfile = null;
+
+        public int getReaders() {
+            return readers;
+        }
+
+        /**
+         * @param readers количество соединений-читателей.
+         */
+        public Options setReaders(int readers) {
+            this.readers = readers;
+            return this;
+        }
+
+        public boolean isWalMode() {
+            return walMode;
+        }
+
+        /**
+         * @param walMode переводить ли БД в режим WAL при открытии пула.
+         */
+        public Options setWalMode(boolean walMode) {
+            this.walMode = walMode;
+            return this;
+        }
+
+        public long getBusyTimeoutMillis() {
+            return busyTimeoutMillis;
+        }
+
+        /**
+         * @param busyTimeoutMillis значение {@code PRAGMA busy_timeout} для всех соединений пула.
+         */
+        public Options setBusyTimeoutMillis(long busyTimeoutMillis) {
+            this.busyTimeoutMillis = busyTimeoutMillis;
+            return this;
+        }
+
+        public long getAcquireTimeoutMillis() {
+            return acquireTimeoutMillis;
+        }
+
+        /**
+         * @param acquireTimeoutMillis сколько ждать свободного читателя.
+         */
+        public Options setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        public long getValidationIdleMillis() {
+            return validationIdleMillis;
+        }
+
+        /**
+         * @param validationIdleMillis читатель, простоявший дольше, проверяется запросом перед выдачей.
+         */
+        public Options setValidationIdleMillis(long validationIdleMillis) {
+            this.validationIdleMillis = validationIdleMillis;
+            return this;
+        }
+
+        public PragmaProfile getPragmaProfile() {
+            return pragmaProfile;
+        }
+
+        /**
+         * @param pragmaProfile профиль настроек PRAGMA для всех соединений пула; применяется до настроек самого пула.
+         *                      {@code journal_mode} и {@code query_only} профиля не применяются: их пул задаёт
+         *                      по роли соединения ({@link #setWalMode(boolean)}, читатели — только чтение).
+         */
+        public Options setPragmaProfile(PragmaProfile pragmaProfile) {
+            this.pragmaProfile = pragmaProfile;
+            return this;
+        }
+
+        public int getWriteQueueCapacity() {
+            return writeQueueCapacity;
+        }
+
+        /**
+         * @param writeQueueCapacity максимальное количество записей, ожидающих писателя.
+         */
+        public Options setWriteQueueCapacity(int writeQueueCapacity) {
+            this.writeQueueCapacity = writeQueueCapacity;
+            return this;
+        }
+    }
+
+    /**
+     * Действие над соединением пула.
+     */
+    public interface IConnectionCallback<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Снимок метрик пула.
+     */
+    public static class Stats {
+        private final int readers;
+
+        private final int readersInUse;
+
+        private final int peakReadersInUse;
+
+        private final long acquisitions;
+
+        private final long acquireTimeouts;
+
+        private final long totalWaitNanos;
+
+        private final long maxWaitNanos;
+
+        private final long validations;
+
+        private final long replacedReaders;
+
+        private final int pendingWrites;
+
+        private final long completedWrites;
+
+        private final double writerUtilization;
+
+        Stats(int readers, int readersInUse, int peakReadersInUse, long acquisitions, long acquireTimeouts,
+              long totalWaitNanos, long maxWaitNanos, long validations, long replacedReaders,
+              int pendingWrites, long completedWrites, double writerUtilization) {
+            this.readers = readers;
+            this.readersInUse = readersInUse;
+            this.peakReadersInUse = peakReadersInUse;
+            this.acquisitions = acquisitions;
+            this.acquireTimeouts = acquireTimeouts;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.validations = validations;
+            this.replacedReaders = replacedReaders;
+            this.pendingWrites = pendingWrites;
+            this.completedWrites = completedWrites;
+            this.writerUtilization = writerUtilization;
+        }
+
+        public int getReaders() {
+            return readers;
+        }
+
+        public int getReadersInUse() {
+            return readersInUse;
+        }
+
+        public int getPeakReadersInUse() {
+            return peakReadersInUse;
+        }
+
+        public double getReaderUtilization() {
+            return readers > 0 ? (double) readersInUse / readers : 0;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        public long getAcquireTimeouts() {
+            return acquireTimeouts;
+        }
+
+        public double getAverageWaitMillis() {
+            return acquisitions > 0 ? totalWaitNanos / 1e6 / acquisitions : 0;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos / 1e6;
+        }
+
+        public long getValidations() {
+            return validations;
+        }
+
+        public long getReplacedReaders() {
+            return replacedReaders;
+        }
+
+        public int getPendingWrites() {
+            return pendingWrites;
+        }
+
+        public long getCompletedWrites() {
+            return completedWrites;
+        }
+
+        /**
+         * @return доля времени с открытия пула, в течение которой писатель был занят.
+         */
+        public double getWriterUtilization() {
+            return writerUtilization;
+        }
+
+        public String toString() {
+            return String.format("SQLitePool[readers=%d/%d (peak %d), acquisitions=%d, timeouts=%d, avgWait=%.3fms, maxWait=%.3fms, "
+                            + "pendingWrites=%d, completedWrites=%d, writerUtilization=%.1f%%]",
+                    readersInUse, readers, peakReadersInUse, acquisitions, acquireTimeouts, getAverageWaitMillis(),
+                    getMaxWaitMillis(), pendingWrites, completedWrites, writerUtilization * 100);
+        }
+    }
+
+    private final String url;
+
+    private final Options options;
+
+    private final Connection writer;
+
+    private final ThreadPoolExecutor writerExecutor;
+
+    private final BlockingQueue<Connection> idleReaders;
+
+    private final Map<Connection, Long> releasedAt = new ConcurrentHashMap<>();
+
+    private final List<Connection> allReaders = new ArrayList<>();
+
+    private final long openedNanos = System.nanoTime();
+
+    private final AtomicInteger readersInUse = new AtomicInteger();
+
+    private final AtomicInteger peakReadersInUse = new AtomicInteger();
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final AtomicLong validations = new AtomicLong();
+
+    private final AtomicLong replacedReaders = new AtomicLong();
+
+    private final AtomicLong completedWrites = new AtomicLong();
+
+    private final AtomicLong writerBusyNanos = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    public SQLitePool(String fileName) throws SQLException {
+        this(fileName, new Options());
+    }
+
+    /**
+     * Открыть пул к файлу БД (файл создаётся, если его нет).
+     *
+     * @param fileName файл базы данных.
+     * @param options  параметры пула.
+     */
+    public SQLitePool(String fileName, Options options) throws SQLException {
+        this(options, "jdbc:sqlite:" + fileName);
+    }
+
+    /**
+     * Открыть пул по JDBC URL, например, к общей БД в памяти.
+     *
+     * @param url     JDBC URL вида {@code jdbc:sqlite:...}.
+     * @param options параметры пула.
+     *
+     * @see MemoryDatabase#openPool(Options)
+     */
+    public static SQLitePool forUrl(String url, Options options) throws SQLException {
+        return new SQLitePool(options, url);
+    }
+
+    private SQLitePool(Options options, String url) throws SQLException {
+        this.url = url;
+        this.options = options;
+        this.writer = open(false);
+        this.idleReaders = new ArrayBlockingQueue<>(Math.max(1, options.getReaders()));
+        try {
+            for (int i = 0; i < options.getReaders(); i++) {
+                Connection reader = open(true);
+                allReaders.add(reader);
+                releasedAt.put(reader, System.nanoTime());
+                idleReaders.add(reader);
+            }
+        } catch (SQLException e) {
+            closeConnections();
+            throw e;
+        }
+        this.writerExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(options.getWriteQueueCapacity()), runnable -> {
+                    Thread thread = new Thread(runnable, "sqlite-pool-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Настройки профиля, которые пул задаёт сам: query_only у писателя сделал бы невозможной любую запись,
+     * а journal_mode читателей конфликтует с режимом, выбранным для писателя.
+     */
+    private static final Set<String> POOL_PRAGMAS = new HashSet<>(Arrays.asList("journal_mode", "query_only"));
+
+    private Connection open(boolean readOnly) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        if (options.getPragmaProfile() != null) {
+            SQLiteUtils.applyPragmaProfile(conn, options.getPragmaProfile(), POOL_PRAGMAS);
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = " + options.getBusyTimeoutMillis() + ";");
+            if (!readOnly && options.isWalMode()) {
+                stmt.execute("PRAGMA journal_mode = WAL;");
+            }
+            if (readOnly) {
+                stmt.execute("PRAGMA query_only = ON;");
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Options getOptions() {
+        return options;
+    }
+
+    /**
+     * Поставить запись в очередь писателя.
+     *
+     * @param callback действие над соединением-писателем.
+     *
+     * @return результат действия; завершается исключением, если действие выбросило исключение
+     *         или очередь переполнена ({@link RejectedExecutionException}).
+     */
+    public <T> CompletableFuture<T> submitWrite(IConnectionCallback<T> callback) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new SQLException("SQLitePool is closed"));
+            return future;
+        }
+        try {
+            writerExecutor.execute(() -> {
+                long start = System.nanoTime();
+                T result = null;
+                Throwable error = null;
+                try {
+                    result = callback.run(writer);
+                } catch (Throwable e) {
+                    error = e;
+                }
+                if (isAutoCommit(writer)) {
+                    // транзакции действия завершены: изменённые в них таблицы сбрасываются в кэше результатов ещё раз
+                    SQLiteUtils.invalidateResultCacheAfterTransaction(writer);
+                }
+                // счётчики обновляются до завершения future, чтобы дождавшийся записи видел её в статистике
+                writerBusyNanos.addAndGet(System.nanoTime() - start);
+                completedWrites.incrementAndGet();
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Выполнить запись в потоке писателя и дождаться результата.
+     */
+    public <T> T write(IConnectionCallback<T> callback) throws SQLException {
+        return await(submitWrite(callback));
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the writer", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Взять соединение-читатель. Соединение нужно вернуть через {@link #releaseReader(Connection)}.
+     *
+     * @throws SQLException если свободный читатель не появился за {@link Options#getAcquireTimeoutMillis()}.
+     */
+    public Connection acquireReader() throws SQLException {
+        if (closed) {
+            throw new SQLException("SQLitePool is closed");
+        }
+        long start = System.nanoTime();
+        Connection conn;
+        try {
+            conn = idleReaders.poll(options.getAcquireTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader", e);
+        }
+        long waited = System.nanoTime() - start;
+        if (conn == null) {
+            acquireTimeouts.incrementAndGet();
+            throw new SQLException("Timed out waiting for a reader after " + options.getAcquireTimeoutMillis() + " ms");
+        }
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        peakReadersInUse.accumulateAndGet(readersInUse.incrementAndGet(), Math::max);
+
+        // соединение без отметки — слот, который не удалось открыть заново: проверка откроет его ещё раз
+        Long idleSince = releasedAt.get(conn);
+        if (idleSince == null || System.nanoTime() - idleSince > options.getValidationIdleMillis() * 1000000L) {
+            conn = validate(conn);
+        }
+        return conn;
+    }
+
+    /**
+     * Вернуть соединение-читатель в пул.
+     */
+    public void releaseReader(Connection conn) {
+        readersInUse.decrementAndGet();
+        releasedAt.put(conn, System.nanoTime());
+        if (closed || !idleReaders.offer(conn)) {
+            closeQuietly(conn);
+        }
+    }
+
+    /**
+     * Выполнить чтение на свободном соединении-читателе.
+     */
+    public <T> T read(IConnectionCallback<T> callback) throws SQLException {
+        Connection conn = acquireReader();
+        try {
+            return callback.run(conn);
+        } finally {
+            releaseReader(conn);
+        }
+    }
+
+    private Connection validate(Connection conn) throws SQLException {
+        validations.incrementAndGet();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT 1;")) {
+            if (rs.next()) {
+                return conn;
+            }
+        } catch (SQLException e) {
+            SQLiteUtils.getLogger().warning("Replacing broken pooled reader: " + e.getMessage());
+        }
+        releasedAt.remove(conn);
+        closeQuietly(conn);
+        replacedReaders.incrementAndGet();
+        Connection replacement;
+        try {
+            replacement = open(true);
+        } catch (SQLException e) {
+            synchronized (allReaders) {
+                allReaders.remove(conn);
+            }
+            readersInUse.decrementAndGet();
+            // вернуть слот в пул: закрытое соединение будет заново открыто при следующем acquireReader
+            if (!closed) {
+                idleReaders.offer(conn);
+            }
+            throw e;
+        }
+        synchronized (allReaders) {
+            allReaders.remove(conn);
+            allReaders.add(replacement);
+        }
+        return replacement;
+    }
+
+    public Stats getStats() {
+        long uptime = System.nanoTime() - openedNanos;
+        return new Stats(options.getReaders(), readersInUse.get(), peakReadersInUse.get(), acquisitions.get(),
+                acquireTimeouts.get(), totalWaitNanos.get(), maxWaitNanos.get(), validations.get(),
+                replacedReaders.get(), writerExecutor.getQueue().size(), completedWrites.get(),
+                uptime > 0 ? (double) writerBusyNanos.get() / uptime : 0);
+    }
+
+    /**
+     * Дождаться выполнения поставленных записей и закрыть все соединения.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writerExecutor.shutdown();
+        try {
+            if (!writerExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                SQLiteUtils.getLogger().warning("SQLitePool writer did not finish pending writes in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnections();
+    }
+
+    private void closeConnections() {
+        synchronized (allReaders) {
+            for (Connection reader : allReaders) {
+                closeQuietly(reader);
+            }
+            allReaders.clear();
+        }
+        idleReaders.clear();
+        closeQuietly(writer);
+    }
+
+    private static boolean isAutoCommit(Connection conn) {
+        try {
+            return conn.getAutoCommit();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        SQLiteUtils.closeStatementCache(conn);
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            SQLiteUtils.getLogger().fine("Failed to close pooled connection: " + e.getMessage());
+        }
+    }
+}
@@ -1,20 +1,25 @@
 package com.gusenov.github;
 
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.FileHandler;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
 public class SQLiteUtils {
-    private static final String sharps = "#############################################";
-
-    private static Logger logger;
+    private static Logger logger = Logger.getLogger("sqlite-utils-java");
 
     public static Logger getLogger() {
         return logger;
@@ -25,26 +30,139 @@ public class SQLiteUtils {
     }
 
     /**
-     * @see <a href="https://stackoverflow.com/a/30388953/2289640">Static initializer in Java</a>
+     * Режим журналирования текста SQL-запросов.
+     */
+    public enum SqlLogMode {
+        /** не журналировать запросы. */
+        OFF,
+        /** каждый запрос на уровне FINE. */
+        ALL,
+        /** каждый N-й запрос на уровне FINE, см. {@link #setSqlLogSampleRate(int)}. */
+        SAMPLED,
+        /** только запросы дольше порога на уровне INFO, см. {@link #setSlowQueryThresholdMillis(long)}. */
+        SLOW_ONLY
+    }
+
+    private static volatile SqlLogMode sqlLogMode = SqlLogMode.ALL;
+
+    private static volatile int sqlLogSampleRate = 100;
+
+    private static volatile long slowQueryThresholdNanos = 100000000L;
+
+    private static final AtomicLong sqlLogCounter = new AtomicLong();
+
+    public static SqlLogMode getSqlLogMode() {
+        return sqlLogMode;
+    }
+
+    public static void setSqlLogMode(SqlLogMode sqlLogMode) {
+        SQLiteUtils.sqlLogMode = sqlLogMode;
+    }
+
+    public static int getSqlLogSampleRate() {
+        return sqlLogSampleRate;
+    }
+
+    /**
+     * @param sqlLogSampleRate в режиме {@link SqlLogMode#SAMPLED} журналируется один запрос из N.
+     */
+    public static void setSqlLogSampleRate(int sqlLogSampleRate) {
+        SQLiteUtils.sqlLogSampleRate = Math.max(1, sqlLogSampleRate);
+    }
+
+    public static long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdNanos / 1000000L;
+    }
+
+    /**
+     * @param slowQueryThresholdMillis в режиме {@link SqlLogMode#SLOW_ONLY} журналируются запросы дольше порога.
+     */
+    public static void setSlowQueryThresholdMillis(long slowQueryThresholdMillis) {
+        SQLiteUtils.slowQueryThresholdNanos = slowQueryThresholdMillis * 1000000L;
+    }
+
+    /**
+     * Писать журнал в файл через асинхронный ограниченный буфер. По умолчанию журнал в файл не пишется.
+     *
+     * @param fileName файл журнала.
+     *
+     * @return подключённый обработчик; его нужно закрыть, чтобы дописать буфер.
+     *
      * @see <a href="https://stackoverflow.com/a/15758768/2289640">How to write logs in text file when using java.util.logging.Logger</a>
+     */
+    public static AsyncLogHandler enableFileLog(String fileName) throws IOException {
+        FileHandler fh = new FileHandler(fileName);
+        fh.setFormatter(new SimpleFormatter());
+        AsyncLogHandler handler = new AsyncLogHandler(fh, 8192);
+        logger.addHandler(handler);
+        return handler;
+    }
+
+    /**
+     * Записать в журнал выполненный запрос согласно {@link SqlLogMode}. Текст сообщения строится,
+     * только если запрос действительно попадёт в журнал.
+     *
+     * @param sql        текст запроса.
+     * @param startNanos {@link System#nanoTime()} до выполнения запроса.
+     *
      * @see <a href="https://stackoverflow.com/questions/5817738/how-to-use-log-levels-in-java">How to use log levels in java</a>
      */
-    static {
-        logger = Logger.getLogger("sqlite-utils-java");
-        FileHandler fh;
-        try {
-            // This block configure the logger with handler and formatter
-            fh = new FileHandler("sqlite-utils.log");
-            logger.addHandler(fh);
-            SimpleFormatter formatter = new SimpleFormatter();
-            fh.setFormatter(formatter);
-        } catch (Exception e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+    static void logSql(String sql, long startNanos) {
+        switch (sqlLogMode) {
+            case ALL:
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(sql);
+                }
+                break;
+            case SAMPLED:
+                if (logger.isLoggable(Level.FINE) && sqlLogCounter.incrementAndGet() % sqlLogSampleRate == 0) {
+                    logger.fine(sql);
+                }
+                break;
+            case SLOW_ONLY:
+                long elapsed = System.nanoTime() - startNanos;
+                if (elapsed >= slowQueryThresholdNanos && logger.isLoggable(Level.INFO)) {
+                    logger.info(String.format("Slow query (%.3f ms): %s", elapsed / 1e6, sql));
+                }
+                break;
+            default:
+                break;
         }
     }
 
+    static void logException(Exception e) {
+        logger.log(Level.WARNING, e.toString(), e);
+    }
+
+    private static volatile IQueryMetrics queryMetrics = IQueryMetrics.NO_OP;
+
+    public static IQueryMetrics getQueryMetrics() {
+        return queryMetrics;
+    }
+
+    /**
+     * Подключить приёмник метрик запросов insert, update, select и delete.
+     *
+     * @param queryMetrics приёмник, например {@link HistogramQueryMetrics}; {@code null} — не собирать метрики.
+     */
+    public static void setQueryMetrics(IQueryMetrics queryMetrics) {
+        SQLiteUtils.queryMetrics = queryMetrics != null ? queryMetrics : IQueryMetrics.NO_OP;
+    }
+
+    /**
+     * @param startNanos    {@link System#nanoTime()} до получения подготовленного запроса.
+     * @param preparedNanos {@link System#nanoTime()} после получения подготовленного запроса.
+     */
+    static void recordQuery(String sql, long startNanos, long preparedNanos, long rows, Iterable<Object> parameters) {
+        queryMetrics.record(sql, preparedNanos - startNanos, System.nanoTime() - preparedNanos, rows, parameters);
+    }
+
+    static void recordFailure(String sql, long startNanos, Iterable<Object> parameters, SQLException e) {
+        queryMetrics.recordFailure(sql, System.nanoTime() - startNanos, parameters, e);
+    }
+
+    private static volatile boolean driverNameLogged = false;
+
     /**
      * Подключиться к существующей БД или создать новую.
      *
@@ -56,46 +174,257 @@ public class SQLiteUtils {
         String url = "jdbc:sqlite:" + fileName;
         try {
             Connection conn = DriverManager.getConnection(url);
-            if (conn != null) {
+            if (conn != null && !driverNameLogged) {
                 DatabaseMetaData meta = conn.getMetaData();
-                logger.info("The driver name is " + meta.getDriverName());
+                logger.fine("The driver name is " + meta.getDriverName());
+                driverNameLogged = true;
             }
             return conn;
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            logException(e);
         }
         return null;
     }
 
-    private interface ISortedMapLoopBody {
-        void run(Object key, Object value, Integer index, Boolean isLast) throws Exception;
+    /**
+     * Подключиться к существующей БД или создать новую и применить профиль настроек PRAGMA.
+     *
+     * @param fileName файл базы данных.
+     * @param profile  профиль настроек.
+     *
+     * @see #applyPragmaProfile(Connection, PragmaProfile)
+     */
+    public static Connection connectOrCreateNewDatabase(String fileName, PragmaProfile profile) {
+        Connection conn = connectOrCreateNewDatabase(fileName);
+        if (conn != null) {
+            applyPragmaProfile(conn, profile);
+        }
+        return conn;
     }
 
     /**
+     * Применить профиль настроек PRAGMA к открытому соединению и сообщить фактические значения.
+     * Значения, которые SQLite не принял, логируются как предупреждение; исключение — {@code page_size} у непустой БД:
+     * он вступает в силу только после VACUUM, поэтому такое расхождение логируется на уровне FINE.
      *
-     * @param sortedMap
-     * @param loopBody
-     * @param <K>
-     * @param <V>
+     * @param conn    соединение с БД.
+     * @param profile профиль настроек.
      *
-     * @see <a href="https://stackoverflow.com/a/4409134/2289640">How to make a Java Generic method static?</a>
-     * @see <a href="https://stackoverflow.com/a/7427797/2289640">How to use SortedMap Interface in Java?</a>
+     * @return фактические значения PRAGMA после применения или пустой словарь при ошибке.
      */
-    private static <K, V> void loopThroughSortedMap(SortedMap<K, V> sortedMap, ISortedMapLoopBody loopBody) {
-        Integer index = 0;
-        for (Map.Entry<K, V> entry : sortedMap.entrySet()) {
-            Boolean isLast = index == sortedMap.size() - 1;
-            try {
-                loopBody.run(entry.getKey(), entry.getValue(), index++, isLast);
-            } catch (Exception e) {
-                logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                        sharps, e.getMessage(), sharps, e.toString(), sharps));
-                e.printStackTrace();
+    public static Map<String, String> applyPragmaProfile(Connection conn, PragmaProfile profile) {
+        return applyPragmaProfile(conn, profile, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param excluded настройки профиля, которые не применяются и не сверяются.
+     */
+    static Map<String, String> applyPragmaProfile(Connection conn, PragmaProfile profile, Set<String> excluded) {
+        try {
+            Map<String, String> actual = profile.apply(conn, excluded);
+            Map<String, String> expected = profile.getSettings();
+            expected.keySet().removeAll(excluded);
+            StringBuilder mismatches = new StringBuilder();
+            StringBuilder pending = new StringBuilder();
+            for (Map.Entry<String, String> setting : expected.entrySet()) {
+                String value = actual.get(setting.getKey());
+                if (!setting.getValue().equalsIgnoreCase(value)) {
+                    StringBuilder target = setting.getKey().equals("page_size") && hasPages(conn) ? pending : mismatches;
+                    target.append(' ').append(setting.getKey()).append('=').append(value)
+                            .append(" (expected ").append(setting.getValue()).append(')');
+                }
+            }
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("PRAGMA profile " + profile + ": " + actual);
+                if (pending.length() > 0) {
+                    logger.fine("PRAGMA profile " + profile + " takes effect after VACUUM:" + pending);
+                }
+            }
+            if (mismatches.length() > 0) {
+                logger.warning("PRAGMA profile " + profile + " not fully applied:" + mismatches);
+            }
+            return actual;
+        } catch (SQLException e) {
+            logException(e);
+        }
+        return Collections.emptyMap();
+    }
+
+    private static boolean hasPages(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA page_count;")) {
+            return rs.next() && rs.getLong(1) > 0;
+        }
+    }
+
+    private static int statementCacheSize = 64;
+
+    /**
+     * Без общей блокировки: поиск кэша соединения не должен упорядочивать запросы разных соединений.
+     * Соединения sqlite-jdbc не переопределяют equals/hashCode, поэтому ключи сравниваются по ссылке.
+     */
+    private static final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+
+    public static int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Задать размер кэша подготовленных запросов для новых соединений.
+     *
+     * @param statementCacheSize максимальное количество запросов в кэше одного соединения (0 — кэш отключён).
+     */
+    public static void setStatementCacheSize(int statementCacheSize) {
+        SQLiteUtils.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Кэш подготовленных запросов соединения, создаётся при первом обращении.
+     *
+     * @param conn соединение с БД.
+     *
+     * @return кэш или {@code null}, если кэширование отключено.
+     */
+    public static StatementCache getStatementCache(Connection conn) {
+        StatementCache cache = statementCaches.get(conn);
+        if (cache == null && statementCacheSize > 0) {
+            removeClosedStatementCaches();
+            cache = statementCaches.computeIfAbsent(conn, c -> new StatementCache(c, statementCacheSize));
+        }
+        return cache;
+    }
+
+    /**
+     * Закрыть закэшированные запросы всех соединений, например, после изменения схемы БД.
+     */
+    public static void invalidateStatementCaches() {
+        for (StatementCache cache : statementCaches.values()) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Закрыть закэшированные запросы соединения и забыть его кэш. Вызывается перед закрытием соединения.
+     *
+     * @param conn соединение с БД.
+     */
+    public static void closeStatementCache(Connection conn) {
+        StatementCache cache = statementCaches.remove(conn);
+        if (cache != null) {
+            cache.invalidate();
+        }
+        invalidateResultCacheAfterTransaction(conn);
+        removeClosedStatementCaches();
+    }
+
+    private static void removeClosedStatementCaches() {
+        statementCaches.keySet().removeIf(SQLiteUtils::isClosed);
+    }
+
+    static boolean isClosed(Connection conn) {
+        try {
+            return conn.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    static PreparedStatement acquireStatement(Connection conn, String sql) throws SQLException {
+        StatementCache cache = getStatementCache(conn);
+        return cache != null ? cache.acquire(sql) : conn.prepareStatement(sql);
+    }
+
+    static void releaseStatement(Connection conn, String sql, PreparedStatement pstmt) {
+        if (pstmt == null) {
+            return;
+        }
+        StatementCache cache = statementCaches.get(conn);
+        if (cache != null) {
+            cache.release(sql, pstmt);
+            if (isClosed(conn)) {
+                statementCaches.remove(conn, cache);
+                cache.invalidate();
+            }
+            return;
+        }
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            logException(e);
+        }
+    }
+
+    private static volatile ResultCache resultCache = null;
+
+    public static ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Подключить кэш результатов для {@link #selectCached(Connection, String, List, QueryCriteria)}.
+     *
+     * @param resultCache кэш или {@code null}, чтобы всегда читать из БД.
+     */
+    public static void setResultCache(ResultCache resultCache) {
+        SQLiteUtils.resultCache = resultCache;
+    }
+
+    /**
+     * Сбросить результаты запросов к таблице, если кэш результатов подключён.
+     */
+    static void invalidateResultCache(String tableName) {
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.invalidate(tableName);
+        }
+    }
+
+    /**
+     * Сбросить результаты запросов к таблице после изменения через соединение. Если соединение внутри транзакции,
+     * результаты таблицы не кэшируются до её завершения, а после завершения таблица сбрасывается ещё раз
+     * (см. {@link PendingInvalidations}): до фиксации другие соединения читают прежние строки.
+     */
+    static void invalidateResultCache(Connection conn, String tableName) throws SQLException {
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            if (!conn.getAutoCommit()) {
+                PendingInvalidations.add(conn, tableName);
             }
+            cache.invalidate(tableName);
+        }
+    }
+
+    /**
+     * Сбросить результаты запросов к таблицам, изменённым в только что зафиксированной или откаченной транзакции
+     * соединения, не дожидаясь обработчика фиксации.
+     */
+    static void invalidateResultCacheAfterTransaction(Connection conn) {
+        Set<String> tables = PendingInvalidations.remove(conn);
+        if (tables != null) {
+            tables.forEach(SQLiteUtils::invalidateResultCache);
+        }
+    }
+
+    private static volatile IndexAdvisor indexAdvisor = null;
+
+    public static IndexAdvisor getIndexAdvisor() {
+        return indexAdvisor;
+    }
+
+    /**
+     * Подключить советника по индексам, которому передаются запросы таблиц с {@link QueryCriteria}.
+     *
+     * @param indexAdvisor советник или {@code null}, чтобы не запоминать запросы.
+     */
+    public static void setIndexAdvisor(IndexAdvisor indexAdvisor) {
+        SQLiteUtils.indexAdvisor = indexAdvisor;
+    }
 
+    static String advise(String tableName, QueryCriteria criterions, String sql) {
+        IndexAdvisor advisor = indexAdvisor;
+        if (advisor != null) {
+            advisor.record(tableName, criterions, sql);
         }
+        return sql;
     }
 
     /**
@@ -110,62 +439,280 @@ public class SQLiteUtils {
      * @see <a href="https://dzone.com/articles/java-string-format-examples">Java String Format Examples</a>
      */
     public static void createNewTable(Connection conn, String tableName, SortedMap<String, String> columns) {
-        StringBuilder sql = new StringBuilder(String.format("CREATE TABLE IF NOT EXISTS %s (\n", tableName));
-        loopThroughSortedMap(columns, new ISortedMapLoopBody() {
-            @Override
-            public void run(Object key, Object value, Integer index, Boolean isLast) {
-                String columnName = (String) key;
-                String columnDatatype = (String) value;
-                sql.append(String.format("	%s %s", columnName, columnDatatype));
-                sql.append(isLast ? "\n" : ",\n");
-            }
-        });
-        sql.append(");");
-        logger.info(sql.toString());
+        String sql = SQLBuilder.get().createTable(tableName, columns);
+        long start = System.nanoTime();
 
         try (Statement stmt = conn.createStatement()) {
-            stmt.execute(sql.toString());
+            stmt.execute(sql);
+            invalidateStatementCaches();
+            invalidateResultCache(conn, tableName);
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            logException(e);
+        } finally {
+            logSql(sql, start);
+        }
+    }
+
+    /**
+     * Создать индекс, если его ещё нет.
+     *
+     * @param conn      соединение с БД.
+     * @param indexName наименование индекса.
+     * @param tableName наименование таблицы.
+     * @param columns   столбцы индекса в порядке сравнения: сначала условия на равенство, затем на диапазон.
+     */
+    public static void createIndex(Connection conn, String indexName, String tableName, List<String> columns) {
+        createIndex(conn, indexName, tableName, columns, false, null);
+    }
+
+    /**
+     * Создать индекс, если его ещё нет.
+     *
+     * @param unique    запретить повторяющиеся значения.
+     * @param where     условие частичного индекса без слова WHERE или {@code null}; в индекс попадают только
+     *                  строки, удовлетворяющие условию, и используется он только запросами с тем же условием.
+     *
+     * @see <a href="https://www.sqlite.org/lang_createindex.html">CREATE INDEX</a>
+     * @see <a href="https://www.sqlite.org/partialindex.html">Partial Indexes</a>
+     */
+    public static void createIndex(Connection conn, String indexName, String tableName, List<String> columns,
+                                   boolean unique, String where) {
+        String sql = SQLBuilder.get().createIndex(indexName, tableName, columns, unique, where);
+        long start = System.nanoTime();
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+            invalidateStatementCaches();
+        } catch (SQLException e) {
+            logException(e);
+        } finally {
+            logSql(sql, start);
+        }
+    }
+
+    /**
+     * Удалить индекс, если он есть.
+     *
+     * @see <a href="https://www.sqlite.org/lang_dropindex.html">DROP INDEX</a>
+     */
+    public static void dropIndex(Connection conn, String indexName) {
+        String sql = SQLBuilder.get().dropIndex(indexName);
+        long start = System.nanoTime();
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+            invalidateStatementCaches();
+        } catch (SQLException e) {
+            logException(e);
+        } finally {
+            logSql(sql, start);
+        }
+    }
+
+    /**
+     * @see ValueBinders
+     */
+    static void setValueForStatement(PreparedStatement pstmt, int index, Object value) throws SQLException {
+        ValueBinders.bind(pstmt, index, value);
+    }
+
+    static int setValuesForStatement(PreparedStatement pstmt, int index, Iterable<Object> values) throws SQLException {
+        for (Object value : values) {
+            setValueForStatement(pstmt, index++, value);
         }
+        return index;
     }
 
-    private static void setValueForStatement(PreparedStatement pstmt, Integer index, Object value) throws SQLException {
-        if (value instanceof String) pstmt.setString(index, (String) value);
-        else if (value instanceof Double) pstmt.setDouble(index, (Double) value);
-        else if (value instanceof Integer) pstmt.setInt(index, (Integer) value);
-        else if (value instanceof Date) pstmt.setDate(index, (Date) value);
-        else if (value instanceof BigDecimal) pstmt.setBigDecimal(index, (BigDecimal) value);
+    /**
+     * Значения обоих наборов подряд; копия не создаётся, пока значения не понадобятся.
+     */
+    private static Iterable<Object> concat(Collection<Object> first, Collection<Object> second) {
+        return () -> Stream.concat(first.stream(), second.stream()).iterator();
     }
 
     public static void insert(Connection conn, String tableName, SortedMap<String, Object> values) {
-        StringBuilder sql = new StringBuilder(String.format("INSERT INTO %s(", tableName));
-        StringBuilder sqlValues = new StringBuilder("VALUES(");
-        loopThroughSortedMap(values, new ISortedMapLoopBody() {
-            @Override
-            public void run(Object key, Object value, Integer index, Boolean isLast) {
-                sqlValues.append(isLast ? "?);" : "?, ");
-                String columnName = (String) key;
-                sql.append(columnName);
-                sql.append(isLast ? ") " + sqlValues : ", ");
+        try {
+            executeInsert(conn, tableName, values);
+        } catch (SQLException e) {
+            logException(e);
+        }
+    }
+
+    /**
+     * @return количество вставленных строк.
+     */
+    static int executeInsert(Connection conn, String tableName, SortedMap<String, Object> values) throws SQLException {
+        String sql = SQLBuilder.get().insert(tableName, values);
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sql);
+            long prepared = System.nanoTime();
+            setValuesForStatement(pstmt, 1, values.values());
+            int rows = pstmt.executeUpdate();
+            invalidateResultCache(conn, tableName);
+            recordQuery(sql, start, prepared, rows, values.values());
+            return rows;
+        } catch (SQLException e) {
+            recordFailure(sql, start, values.values(), e);
+            throw e;
+        } finally {
+            releaseStatement(conn, sql, pstmt);
+            logSql(sql, start);
+        }
+    }
+
+    /**
+     * Вставить много строк одним подготовленным запросом с фиксацией транзакции порциями.
+     *
+     * @param conn      соединение с БД.
+     * @param tableName наименование таблицы.
+     * @param rows      строки: наименования столбцов и значения.
+     * @param options   размер порции и сбор сгенерированных ключей.
+     *
+     * @return итог по зафиксированным строкам: количество, строк в секунду и сгенерированные ключи.
+     *
+     * @see BatchInserter
+     */
+    public static BatchInserter.Result insertAll(Connection conn, String tableName,
+                                                 Iterable<? extends SortedMap<String, Object>> rows,
+                                                 BatchInserter.Options options) {
+        BatchInserter inserter = null;
+        try {
+            inserter = new BatchInserter(conn, tableName, options);
+            for (SortedMap<String, Object> row : rows) {
+                inserter.add(row);
             }
-        });
-        logger.info(sql.toString());
+            inserter.close();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("INSERT INTO " + tableName + ": " + inserter.getResult());
+            }
+        } catch (SQLException e) {
+            logException(e);
+            if (inserter != null) {
+                try {
+                    inserter.rollback();
+                    inserter.close();
+                } catch (SQLException ignored) {
+                    // соединение уже в состоянии ошибки, исходное исключение залогировано выше
+                }
+            }
+        }
+        return inserter != null ? inserter.getResult() : new BatchInserter.Result(0, 0, 0, new long[0]);
+    }
+
+    public static BatchInserter.Result insertAll(Connection conn, String tableName,
+                                                 Iterable<? extends SortedMap<String, Object>> rows) {
+        return insertAll(conn, tableName, rows, new BatchInserter.Options());
+    }
+
+    /**
+     * Вставить строку или обновить существующую с тем же ключом одним запросом.
+     *
+     * @param conn      соединение с БД.
+     * @param tableName наименование таблицы.
+     * @param values    наименования столбцов и значения.
+     * @param upsert    цель конфликта и правила обновления столбцов.
+     *
+     * @see Upsert
+     */
+    public static void upsert(Connection conn, String tableName, SortedMap<String, Object> values, Upsert upsert) {
+        try {
+            executeUpsert(conn, tableName, Collections.singletonList(values), upsert);
+        } catch (SQLException e) {
+            logException(e);
+        }
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
-            loopThroughSortedMap(values, new ISortedMapLoopBody() {
-                @Override
-                public void run(Object key, Object value, Integer index, Boolean isLast) throws Exception {
-                    setValueForStatement(pstmt, index + 1, value);
+    /**
+     * Вставить или обновить много строк. Подряд идущие строки с одинаковым набором столбцов упаковываются
+     * в многострочный {@code VALUES} так, чтобы количество параметров не превышало {@link Upsert#getMaxParameters()}.
+     * Если соединение в режиме autocommit, все строки выполняются в одной транзакции; иначе — внутри транзакции
+     * вызывающего под точкой сохранения.
+     *
+     * @return количество вставленных и обновлённых строк; 0 при ошибке: в режиме autocommit откатывается вся транзакция,
+     *         иначе только изменения этого вызова (до точки сохранения), а транзакция вызывающего продолжается.
+     *
+     * @see <a href="https://www.sqlite.org/lang_savepoint.html">SAVEPOINT</a>
+     */
+    public static int upsertAll(Connection conn, String tableName, Iterable<? extends SortedMap<String, Object>> rows, Upsert upsert) {
+        try {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            Savepoint savepoint = autoCommit ? null : conn.setSavepoint();
+            try {
+                int changes = executeUpsert(conn, tableName, rows, upsert);
+                if (autoCommit) {
+                    conn.commit();
+                    invalidateResultCacheAfterTransaction(conn);
+                } else {
+                    conn.releaseSavepoint(savepoint);
                 }
-            });
-            pstmt.executeUpdate();
+                return changes;
+            } catch (SQLException | RuntimeException e) {
+                if (autoCommit) {
+                    conn.rollback();
+                    invalidateResultCacheAfterTransaction(conn);
+                } else {
+                    conn.rollback(savepoint);
+                    conn.releaseSavepoint(savepoint);
+                }
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            logException(e);
+        }
+        return 0;
+    }
+
+    /**
+     * @return количество вставленных и обновлённых строк.
+     */
+    static int executeUpsert(Connection conn, String tableName, Iterable<? extends SortedMap<String, Object>> rows, Upsert upsert) throws SQLException {
+        List<SortedMap<String, Object>> chunk = new ArrayList<>();
+        ValueBinders.Plan plan = new ValueBinders.Plan();
+        int changes = 0;
+        for (SortedMap<String, Object> row : rows) {
+            if (!chunk.isEmpty() && (!chunk.get(0).keySet().equals(row.keySet())
+                    || (chunk.size() + 1) * row.size() > upsert.getMaxParameters())) {
+                changes += executeUpsertChunk(conn, tableName, chunk, upsert, plan);
+                chunk.clear();
+            }
+            chunk.add(row);
+        }
+        if (!chunk.isEmpty()) {
+            changes += executeUpsertChunk(conn, tableName, chunk, upsert, plan);
+        }
+        return changes;
+    }
+
+    private static int executeUpsertChunk(Connection conn, String tableName, List<SortedMap<String, Object>> chunk, Upsert upsert,
+                                          ValueBinders.Plan plan) throws SQLException {
+        String sql = SQLBuilder.get().upsert(tableName, chunk.get(0), chunk.size(), upsert);
+        Iterable<Object> parameters = () -> chunk.stream().flatMap(row -> row.values().stream()).iterator();
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sql);
+            long prepared = System.nanoTime();
+            int index = 1;
+            for (SortedMap<String, Object> row : chunk) {
+                index = plan.bind(pstmt, index, row.values());
+            }
+            int rows = pstmt.executeUpdate();
+            invalidateResultCache(conn, tableName);
+            recordQuery(sql, start, prepared, rows, parameters);
+            return rows;
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            recordFailure(sql, start, parameters, e);
+            throw e;
+        } finally {
+            releaseStatement(conn, sql, pstmt);
+            logSql(sql, start);
         }
     }
 
@@ -173,7 +720,18 @@ public class SQLiteUtils {
      * @see <a href="https://www.mathsisfun.com/equal-less-greater.html">Equal, Greater or Less Than</a>
      */
     public enum PredicateOperator {
-        EQUALS, NOT_EQUAL_TO, GREATER_THAN, LESS_THAN, GREATER_THAN_OR_EQUAL_TO, LESS_THAN_OR_EQUAL_TO
+        EQUALS("="), NOT_EQUAL_TO("<>"), GREATER_THAN(">"), LESS_THAN("<"),
+        GREATER_THAN_OR_EQUAL_TO(">="), LESS_THAN_OR_EQUAL_TO("<=");
+
+        private final String sql;
+
+        PredicateOperator(String sql) {
+            this.sql = sql;
+        }
+
+        String getSql() {
+            return sql;
+        }
     }
 
     /**
@@ -182,7 +740,7 @@ public class SQLiteUtils {
      * @see <a href="https://stackoverflow.com/questions/20252727/is-not-an-enclosing-class-java">Is not an enclosing class Java</a>
      */
     public static class QueryCriteria {
-        private StringBuilder sql = new StringBuilder("");
+        private final StringBuilder sql = new StringBuilder();
 
         private List<Object> values = new ArrayList<>();
 
@@ -197,72 +755,126 @@ public class SQLiteUtils {
         public QueryCriteria() {
         }
 
-        private void add(String combineOperator, String column, String predicateOperator, Object value) {
-            if (sql.toString().isEmpty()) {
-                sql.append(String.format("(%s %s ?)", column, predicateOperator));
-            } else {
-                sql.append(String.format(" %s (%s %s ?)", combineOperator, column, predicateOperator));
+        private final List<String> columns = new ArrayList<>();
+
+        private final List<PredicateOperator> operators = new ArrayList<>();
+
+        private boolean disjunctive = false;
+
+        private void add(String combineOperator, String column, PredicateOperator predicateOperator, Object value) {
+            if (sql.length() > 0) {
+                sql.append(' ').append(combineOperator).append(' ');
+                disjunctive |= combineOperator.equals("OR");
             }
+            sql.append('(').append(column).append(' ').append(predicateOperator.getSql()).append(" ?)");
             values.add(value);
+            columns.add(column);
+            operators.add(predicateOperator);
+        }
+
+        /**
+         * Столбцы условий в порядке добавления.
+         */
+        List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * Операторы условий в порядке добавления.
+         */
+        List<PredicateOperator> getOperators() {
+            return operators;
+        }
+
+        /**
+         * @return есть ли в условии OR.
+         */
+        boolean isDisjunctive() {
+            return disjunctive;
+        }
+
+        CharSequence getSql() {
+            return sql;
+        }
+
+        QueryCriteria copy() {
+            QueryCriteria copy = new QueryCriteria();
+            copy.sql.append(sql);
+            copy.values.addAll(values);
+            copy.columns.addAll(columns);
+            copy.operators.addAll(operators);
+            copy.disjunctive = disjunctive;
+            return copy;
+        }
+
+        /**
+         * Заключить накопленное условие в скобки, чтобы следующие условия AND относились ко всему условию,
+         * а не к последнему слагаемому OR.
+         */
+        QueryCriteria group() {
+            if (sql.length() > 0) {
+                sql.insert(0, '(').append(')');
+            }
+            return this;
         }
 
         public QueryCriteria andEquals(String column, Object value) {
-            add("AND", column, "=", value);
+            add("AND", column, PredicateOperator.EQUALS, value);
             return this;
         }
 
         public QueryCriteria andNotEqualTo(String column, Object value) {
-            add("AND", column, "<>", value);
+            add("AND", column, PredicateOperator.NOT_EQUAL_TO, value);
             return this;
         }
 
         public QueryCriteria andGreaterThan(String column, Object value) {
-            add("AND", column, ">", value);
+            add("AND", column, PredicateOperator.GREATER_THAN, value);
             return this;
         }
 
         public QueryCriteria andLessThan(String column, Object value) {
-            add("AND", column, "<", value);
+            add("AND", column, PredicateOperator.LESS_THAN, value);
             return this;
         }
 
         public QueryCriteria andGreaterThanOrEqualTo(String column, Object value) {
-            add("AND", column, ">=", value);
+            add("AND", column, PredicateOperator.GREATER_THAN_OR_EQUAL_TO, value);
             return this;
         }
 
         public QueryCriteria andLessThanOrEqualTo(String column, Object value) {
-            add("AND", column, "<=", value);
+            add("AND", column, PredicateOperator.LESS_THAN_OR_EQUAL_TO, value);
             return this;
         }
 
         public QueryCriteria orEquals(String column, Object value) {
-            add("OR", column, "=", value);
+            add("OR", column, PredicateOperator.EQUALS, value);
             return this;
         }
 
         public QueryCriteria orNotEqualTo(String column, Object value) {
-            add("OR", column, "<>", value);
+            add("OR", column, PredicateOperator.NOT_EQUAL_TO, value);
             return this;
         }
 
         public QueryCriteria orGreaterThan(String column, Object value) {
-            add("OR", column, ">", value);
+            add("OR", column, PredicateOperator.GREATER_THAN, value);
             return this;
         }
 
         public QueryCriteria orLessThan(String column, Object value) {
-            add("OR", column, "<", value);
+            add("OR", column, PredicateOperator.LESS_THAN, value);
             return this;
         }
 
         public QueryCriteria orGreaterThanOrEqualTo(String column, Object value) {
-            add("OR", column, ">=", value);
+            add("OR", column, PredicateOperator.GREATER_THAN_OR_EQUAL_TO, value);
             return this;
         }
 
         public QueryCriteria orLessThanOrEqualTo(String column, Object value) {
-            add("OR", column, "<=", value);
+            add("OR", column, PredicateOperator.LESS_THAN_OR_EQUAL_TO, value);
             return this;
         }
 
@@ -274,51 +886,114 @@ public class SQLiteUtils {
         }
     }
 
+    /**
+     * Скомпилированный запрос: неизменяемый текст SQL с условием {@link QueryCriteria} и количество его параметров.
+     * Создаётся один раз через {@link #compileSelect(String, List, QueryCriteria)} или
+     * {@link #compileDelete(String, QueryCriteria)} и выполняется многократно с новыми значениями параметров
+     * без построения строк; подготовленный запрос берётся из кэша соединения.
+     */
+    public static final class CompiledQuery {
+        private final String tableName;
+
+        private final String sql;
+
+        private final int parameterCount;
+
+        private final ValueBinders.Plan plan = new ValueBinders.Plan();
+
+        private CompiledQuery(String tableName, String sql, int parameterCount) {
+            this.tableName = tableName;
+            this.sql = sql;
+            this.parameterCount = parameterCount;
+        }
+
+        String getTableName() {
+            return tableName;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public int getParameterCount() {
+            return parameterCount;
+        }
+
+        public String toString() {
+            return sql;
+        }
+    }
+
+    /**
+     * Скомпилировать запрос SELECT. Значения, добавленные в {@code criterions}, в шаблон не входят.
+     *
+     * @param tableName  наименование таблицы.
+     * @param columns    наименования столбцов (пустой список — все столбцы).
+     * @param criterions условие, задающее форму запроса.
+     */
+    public static CompiledQuery compileSelect(String tableName, List<String> columns, QueryCriteria criterions) {
+        return new CompiledQuery(tableName, advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql())),
+                criterions.getValues().size());
+    }
+
+    /**
+     * Скомпилировать запрос DELETE. Значения, добавленные в {@code criterions}, в шаблон не входят.
+     *
+     * @param tableName  наименование таблицы.
+     * @param criterions условие, задающее форму запроса.
+     *
+     * @throws IllegalArgumentException если условие пустое.
+     */
+    public static CompiledQuery compileDelete(String tableName, QueryCriteria criterions) {
+        return new CompiledQuery(tableName, advise(tableName, criterions, SQLBuilder.get().delete(tableName, criterions.getSql())),
+                criterions.getValues().size());
+    }
+
+    private static void checkParameterCount(CompiledQuery query, Object[] parameters) {
+        if (parameters.length != query.getParameterCount()) {
+            throw new IllegalArgumentException(String.format("Expected %d parameters but got %d for: %s",
+                    query.getParameterCount(), parameters.length, query.getSql()));
+        }
+    }
+
+    private static void setParametersForStatement(PreparedStatement pstmt, CompiledQuery query, Object[] parameters) throws SQLException {
+        checkParameterCount(query, parameters);
+        for (int i = 0; i < parameters.length; i++) {
+            query.plan.bind(pstmt, i + 1, i, parameters[i]);
+        }
+    }
+
     public static void update(Connection conn, String tableName, SortedMap<String, Object> values, SortedMap<String, Object> criterions) {
-        StringBuilder sql = new StringBuilder(String.format("UPDATE %s SET ", tableName));
-        loopThroughSortedMap(values, new ISortedMapLoopBody() {
-            @Override
-            public void run(Object key, Object value, Integer index, Boolean isLast) {
-                String columnName = (String) key;
-                sql.append(String.format("%s = ?", columnName));
-                sql.append(isLast ? "" : ", ");
-            }
-        });
-        if (criterions.size() > 0) {
-            sql.append(" WHERE ");
-            loopThroughSortedMap(criterions, new ISortedMapLoopBody() {
-                @Override
-                public void run(Object key, Object value, Integer index, Boolean isLast) {
-                    String columnName = (String) key;
-                    sql.append(String.format("%s = ?", columnName));
-                    sql.append(isLast ? "" : " AND ");
-                }
-            });
+        try {
+            executeUpdate(conn, tableName, values, criterions);
+        } catch (SQLException e) {
+            logException(e);
         }
-        logger.info(sql.toString());
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
-            loopThroughSortedMap(values, new ISortedMapLoopBody() {
-                @Override
-                public void run(Object key, Object value, Integer index, Boolean isLast) throws Exception {
-                    setValueForStatement(pstmt, index + 1, value);
-                }
-            });
-
-            if (criterions.size() > 0) {
-                loopThroughSortedMap(criterions, new ISortedMapLoopBody() {
-                    @Override
-                    public void run(Object key, Object value, Integer index, Boolean isLast) throws Exception {
-                        setValueForStatement(pstmt, values.size() + index + 1, value);
-                    }
-                });
-            }
+    /**
+     * @return количество изменённых строк.
+     */
+    static int executeUpdate(Connection conn, String tableName, SortedMap<String, Object> values, SortedMap<String, Object> criterions) throws SQLException {
+        String sqlText = SQLBuilder.get().update(tableName, values, criterions);
+        long start = System.nanoTime();
 
-            pstmt.executeUpdate();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sqlText);
+            long prepared = System.nanoTime();
+            int index = setValuesForStatement(pstmt, 1, values.values());
+            setValuesForStatement(pstmt, index, criterions.values());
+            int rows = pstmt.executeUpdate();
+            invalidateResultCache(conn, tableName);
+            recordQuery(sqlText, start, prepared, rows, concat(values.values(), criterions.values()));
+            return rows;
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            recordFailure(sqlText, start, concat(values.values(), criterions.values()), e);
+            throw e;
+        } finally {
+            releaseStatement(conn, sqlText, pstmt);
+            logSql(sqlText, start);
         }
     }
 
@@ -336,16 +1011,20 @@ public class SQLiteUtils {
      * @see <a href="http://www.sqlitetutorial.net/sqlite-java/select/">SQLite Java: Select Data</a>
      */
     public static void select(Connection conn, String sql, IQueryResultLoopBody loopBody) {
-        logger.info(sql);
+        long start = System.nanoTime();
+        long rows = 0;
         try (Statement stmt  = conn.createStatement();
              ResultSet rs    = stmt.executeQuery(sql)) {
             while (rs.next()) { // loop through the result set
                 loopBody.run(rs);
+                rows++;
             }
+            recordQuery(sql, start, start, rows, Collections.emptyList());
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            recordFailure(sql, start, Collections.emptyList(), e);
+            logException(e);
+        } finally {
+            logSql(sql, start);
         }
     }
 
@@ -358,40 +1037,34 @@ public class SQLiteUtils {
      * @see <a href="http://crunchify.com/how-to-iterate-through-java-list-4-way-to-iterate-through-loop/">How to iterate through Java List?</a>
      */
     public static void select(Connection conn, String tableName, List<String> columns, QueryCriteria criterions, IQueryResultLoopBody loopBody) {
-        StringBuilder sql = new StringBuilder("SELECT ");
-        if (columns.size() > 0) {
-            for (int i = 0; i < columns.size(); i++) {
-                if (i != columns.size() - 1) {
-                    sql.append(String.format("%s, ", columns.get(i)));
-                } else {
-                    sql.append(String.format("%s FROM ", columns.get(i)));
-                }
-            }
-        } else {
-            sql.append("* FROM ");
-        }
-        sql.append(String.format("%s WHERE %s", tableName, criterions.toString()));
-        logger.info(sql.toString());
+        String sqlText = advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql()));
+        long start = System.nanoTime();
 
-        try (PreparedStatement pstmt  = conn.prepareStatement(sql.toString())) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sqlText);
+            long prepared = System.nanoTime();
             // set the value
-            for (int i = 1; i <= criterions.getValues().size(); i++) {
-                setValueForStatement(pstmt, i, criterions.getValues().get(i - 1));
-            }
-            ResultSet rs  = pstmt.executeQuery();
-            while (rs.next()) { // loop through the result set
-                loopBody.run(rs);
+            setValuesForStatement(pstmt, 1, criterions.getValues());
+            long rows = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) { // loop through the result set
+                    loopBody.run(rs);
+                    rows++;
+                }
             }
-            rs.close();
+            recordQuery(sqlText, start, prepared, rows, criterions.getValues());
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            recordFailure(sqlText, start, criterions.getValues(), e);
+            logException(e);
+        } finally {
+            releaseStatement(conn, sqlText, pstmt);
+            logSql(sqlText, start);
         }
     }
 
     /**
-     * Удалить строку или строки.
+     * Удалить строку или строки. Пустое условие считается ошибкой и ничего не удаляет.
      *
      * @param conn
      * @param tableName
@@ -400,19 +1073,406 @@ public class SQLiteUtils {
      * @see <a href="http://www.sqlitetutorial.net/sqlite-java/delete/">SQLite Java: Deleting Data</a>
      */
     public static void delete(Connection conn, String tableName, QueryCriteria criterions) {
-        StringBuilder sql = new StringBuilder(String.format("DELETE FROM %s WHERE %s;", tableName, criterions));
-        logger.info(sql.toString());
+        try {
+            executeDelete(conn, tableName, criterions);
+        } catch (SQLException e) {
+            logException(e);
+        }
+    }
+
+    /**
+     * @return количество удалённых строк.
+     */
+    static int executeDelete(Connection conn, String tableName, QueryCriteria criterions) throws SQLException {
+        if (criterions.getSql().length() == 0) {
+            throw new SQLException("DELETE from " + tableName + " without criteria would remove all rows");
+        }
+        String sqlText = advise(tableName, criterions, SQLBuilder.get().delete(tableName, criterions.getSql()));
+        long start = System.nanoTime();
 
-        try (PreparedStatement pstmt  = conn.prepareStatement(sql.toString())) {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sqlText);
+            long prepared = System.nanoTime();
             // set the corresponding param
-            for (int i = 1; i <= criterions.getValues().size(); i++) {
-                setValueForStatement(pstmt, i, criterions.getValues().get(i - 1));
+            setValuesForStatement(pstmt, 1, criterions.getValues());
+            int rows = pstmt.executeUpdate(); // execute the delete statement
+            invalidateResultCache(conn, tableName);
+            recordQuery(sqlText, start, prepared, rows, criterions.getValues());
+            return rows;
+        } catch (SQLException e) {
+            recordFailure(sqlText, start, criterions.getValues(), e);
+            throw e;
+        } finally {
+            releaseStatement(conn, sqlText, pstmt);
+            logSql(sqlText, start);
+        }
+    }
+
+    /**
+     * Выполнить скомпилированный запрос SELECT.
+     *
+     * @param conn       соединение с БД.
+     * @param query      шаблон из {@link #compileSelect(String, List, QueryCriteria)}.
+     * @param parameters значения параметров в порядке добавления условий.
+     * @param loopBody   функция для обработки результатов.
+     */
+    public static void select(Connection conn, CompiledQuery query, Object[] parameters, IQueryResultLoopBody loopBody) {
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, query.getSql());
+            long prepared = System.nanoTime();
+            setParametersForStatement(pstmt, query, parameters);
+            long rows = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    loopBody.run(rs);
+                    rows++;
+                }
+            }
+            recordQuery(query.getSql(), start, prepared, rows, Arrays.asList(parameters));
+        } catch (SQLException e) {
+            recordFailure(query.getSql(), start, Arrays.asList(parameters), e);
+            logException(e);
+        } finally {
+            releaseStatement(conn, query.getSql(), pstmt);
+            logSql(query.getSql(), start);
+        }
+    }
+
+    /**
+     * Выполнить скомпилированный запрос DELETE.
+     *
+     * @param conn       соединение с БД.
+     * @param query      шаблон из {@link #compileDelete(String, QueryCriteria)}.
+     * @param parameters значения параметров в порядке добавления условий.
+     */
+    public static void delete(Connection conn, CompiledQuery query, Object... parameters) {
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, query.getSql());
+            long prepared = System.nanoTime();
+            setParametersForStatement(pstmt, query, parameters);
+            int rows = pstmt.executeUpdate();
+            invalidateResultCache(conn, query.getTableName());
+            recordQuery(query.getSql(), start, prepared, rows, Arrays.asList(parameters));
+        } catch (SQLException e) {
+            recordFailure(query.getSql(), start, Arrays.asList(parameters), e);
+            logException(e);
+        } finally {
+            releaseStatement(conn, query.getSql(), pstmt);
+            logSql(query.getSql(), start);
+        }
+    }
+
+    private static RowIterator openRowIterator(Connection conn, String sql, Iterable<Object> values, int fetchSize) {
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sql);
+            setValuesForStatement(pstmt, 1, values);
+            pstmt.setFetchSize(fetchSize);
+            RowIterator iterator = new RowIterator(conn, sql, pstmt);
+            logSql(sql, start);
+            return iterator;
+        } catch (SQLException e) {
+            releaseStatement(conn, sql, pstmt);
+            throw new UncheckedSQLException(sql, e);
+        }
+    }
+
+    /**
+     * Ленивый обход результата текстового SQL-запроса.
+     *
+     * @param conn      соединение с БД.
+     * @param sql       запрос к БД.
+     * @param fetchSize сколько строк драйвер читает за одно обращение (0 — значение драйвера по умолчанию).
+     *
+     * @return итератор, который нужно закрыть, если строки прочитаны не до конца.
+     *
+     * @throws UncheckedSQLException если запрос не удалось выполнить.
+     */
+    public static RowIterator iterate(Connection conn, String sql, int fetchSize) {
+        return openRowIterator(conn, sql, Collections.emptyList(), fetchSize);
+    }
+
+    /**
+     * Ленивый обход строк таблицы, удовлетворяющих условию.
+     *
+     * @param conn       соединение с БД.
+     * @param tableName  наименование таблицы.
+     * @param columns    наименования столбцов (пустой список — все столбцы).
+     * @param criterions условие отбора.
+     * @param fetchSize  сколько строк драйвер читает за одно обращение (0 — значение драйвера по умолчанию).
+     *
+     * @throws UncheckedSQLException если запрос не удалось выполнить.
+     */
+    public static RowIterator iterate(Connection conn, String tableName, List<String> columns, QueryCriteria criterions, int fetchSize) {
+        return openRowIterator(conn, advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql())),
+                criterions.getValues(), fetchSize);
+    }
+
+    /**
+     * Ленивый обход результата скомпилированного запроса SELECT.
+     *
+     * @throws UncheckedSQLException если запрос не удалось выполнить.
+     */
+    public static RowIterator iterate(Connection conn, CompiledQuery query, Object[] parameters, int fetchSize) {
+        checkParameterCount(query, parameters);
+        return openRowIterator(conn, query.getSql(), Arrays.asList(parameters), fetchSize);
+    }
+
+    /**
+     * Поток строк результата текстового SQL-запроса. Строки читаются по мере потребления,
+     * поэтому {@code limit}/{@code findFirst} не читают таблицу целиком.
+     * Поток нужно закрыть (try-with-resources), если он потреблён не до конца.
+     *
+     * @see #iterate(Connection, String, int)
+     */
+    public static Stream<Row> stream(Connection conn, String sql, int fetchSize) {
+        return iterate(conn, sql, fetchSize).stream();
+    }
+
+    /**
+     * @see #iterate(Connection, String, List, QueryCriteria, int)
+     */
+    public static Stream<Row> stream(Connection conn, String tableName, List<String> columns, QueryCriteria criterions, int fetchSize) {
+        return iterate(conn, tableName, columns, criterions, fetchSize).stream();
+    }
+
+    /**
+     * @see #iterate(Connection, CompiledQuery, Object[], int)
+     */
+    public static Stream<Row> stream(Connection conn, CompiledQuery query, Object[] parameters, int fetchSize) {
+        return iterate(conn, query, parameters, fetchSize).stream();
+    }
+
+    /**
+     * Преобразование строки результата в объект. Индексы столбцов вычисляются один раз на запрос.
+     */
+    public interface IRowMapper<T> {
+        /**
+         * @param rs      результат запроса, установленный на текущую строку.
+         * @param columns JDBC-индексы запрошенных столбцов в порядке их перечисления.
+         */
+        T map(ResultSet rs, int[] columns) throws SQLException;
+    }
+
+    /**
+     * Чтение строки результата в объекты или массивы вызывающего без упаковки значений.
+     */
+    public interface IRowReader {
+        /**
+         * @param rs      результат запроса, установленный на текущую строку.
+         * @param row     номер строки, начиная с 0.
+         * @param columns JDBC-индексы запрошенных столбцов в порядке их перечисления.
+         */
+        void read(ResultSet rs, int row, int[] columns) throws SQLException;
+    }
+
+    public interface IColumnarBatchHandler {
+        void onBatch(ColumnarBatch batch) throws SQLException;
+    }
+
+    /**
+     * @param labels наименования столбцов или {@code null}, если нужны все столбцы по порядку.
+     */
+    private static int[] resolveColumns(ResultSet rs, String[] labels) throws SQLException {
+        if (labels == null) {
+            int[] columns = new int[rs.getMetaData().getColumnCount()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = i + 1;
+            }
+            return columns;
+        }
+        int[] columns = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            columns[i] = rs.findColumn(labels[i]);
+        }
+        return columns;
+    }
+
+    private static int selectInto(Connection conn, String sql, Iterable<Object> values, String[] labels, IRowReader reader) {
+        long start = System.nanoTime();
+
+        int row = 0;
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sql);
+            long prepared = System.nanoTime();
+            setValuesForStatement(pstmt, 1, values);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                int[] columns = resolveColumns(rs, labels);
+                while (rs.next()) {
+                    reader.read(rs, row++, columns);
+                }
             }
-            pstmt.executeUpdate(); // execute the delete statement
+            recordQuery(sql, start, prepared, row, values);
         } catch (SQLException e) {
-            logger.warning(String.format("\n\n%s\nException message: %s\n%s\nException message with class name: %s\n%s\n",
-                    sharps, e.getMessage(), sharps, e.toString(), sharps));
-            e.printStackTrace();
+            recordFailure(sql, start, values, e);
+            logException(e);
+        } finally {
+            releaseStatement(conn, sql, pstmt);
+            logSql(sql, start);
         }
+        return row;
+    }
+
+    /**
+     * Текстовый SQL-запрос с чтением строк по индексам столбцов, найденным один раз на запрос.
+     *
+     * @param conn   соединение с БД.
+     * @param sql    запрос к БД.
+     * @param labels наименования столбцов, индексы которых передаются в {@code reader}.
+     * @param reader функция чтения строки.
+     *
+     * @return количество прочитанных строк.
+     */
+    public static int selectInto(Connection conn, String sql, String[] labels, IRowReader reader) {
+        return selectInto(conn, sql, Collections.emptyList(), labels, reader);
+    }
+
+    /**
+     * Запрос строк таблицы с чтением по индексам столбцов. Индекс i-го элемента {@code columns} равен i + 1,
+     * поэтому поиск столбцов по имени не выполняется вовсе.
+     *
+     * @return количество прочитанных строк.
+     */
+    public static int selectInto(Connection conn, String tableName, List<String> columns, QueryCriteria criterions, IRowReader reader) {
+        return selectInto(conn, advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql())),
+                criterions.getValues(), null, reader);
+    }
+
+    /**
+     * Текстовый SQL-запрос с преобразованием каждой строки в объект.
+     *
+     * @param labels наименования столбцов, индексы которых передаются в {@code mapper}.
+     */
+    public static <T> List<T> selectList(Connection conn, String sql, String[] labels, IRowMapper<T> mapper) {
+        List<T> result = new ArrayList<>();
+        selectInto(conn, sql, labels, (rs, row, columns) -> result.add(mapper.map(rs, columns)));
+        return result;
+    }
+
+    /**
+     * Запрос строк таблицы с преобразованием каждой строки в объект.
+     */
+    public static <T> List<T> selectList(Connection conn, String tableName, List<String> columns, QueryCriteria criterions, IRowMapper<T> mapper) {
+        List<T> result = new ArrayList<>();
+        selectInto(conn, tableName, columns, criterions, (rs, row, indexes) -> result.add(mapper.map(rs, indexes)));
+        return result;
+    }
+
+    /**
+     * Запрос строк таблицы через кэш результатов, см. {@link #setResultCache(ResultCache)}.
+     * Без подключённого кэша запрос выполняется каждый раз.
+     *
+     * @return неизменяемый список строк, общий для всех вызовов с тем же ключом;
+     *         массивы байт в строках изменять нельзя.
+     *
+     * @see ResultCache
+     */
+    public static List<Row> selectCached(Connection conn, String tableName, List<String> columns, QueryCriteria criterions) {
+        String sql = advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql()));
+        ResultCache cache = resultCache;
+        try {
+            return cache != null ? cache.get(conn, tableName, sql, criterions.getValues()) : readRows(conn, sql, criterions.getValues());
+        } catch (SQLException e) {
+            logException(e);
+            return Collections.emptyList();
+        }
+    }
+
+    static List<Row> readRows(Connection conn, String sql, List<Object> values) throws SQLException {
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = acquireStatement(conn, sql);
+            long prepared = System.nanoTime();
+            setValuesForStatement(pstmt, 1, values);
+            List<Row> rows = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                Row.Columns columns = Row.Columns.of(rs);
+                while (rs.next()) {
+                    rows.add(Row.read(columns, rs));
+                }
+            }
+            recordQuery(sql, start, prepared, rows.size(), values);
+            return Collections.unmodifiableList(rows);
+        } catch (SQLException e) {
+            recordFailure(sql, start, values, e);
+            throw e;
+        } finally {
+            releaseStatement(conn, sql, pstmt);
+            logSql(sql, start);
+        }
+    }
+
+    /**
+     * Пустой буфер построил бы SELECT *, а массивов под столбцы результата в нём нет.
+     */
+    private static void checkColumns(ColumnarBatch batch) {
+        if (batch.getLabels().length == 0) {
+            throw new IllegalArgumentException("ColumnarBatch has no columns");
+        }
+    }
+
+    private static int scan(Connection conn, String sql, Iterable<Object> values, String[] labels,
+                            ColumnarBatch batch, IColumnarBatchHandler handler) {
+        batch.clear();
+        int rows = selectInto(conn, sql, values, labels, (rs, row, columns) -> {
+            batch.read(rs, columns);
+            if (batch.isFull()) {
+                handler.onBatch(batch);
+                batch.clear();
+            }
+        });
+        if (batch.getSize() > 0) {
+            try {
+                handler.onBatch(batch);
+            } catch (SQLException e) {
+                logException(e);
+            }
+            batch.clear();
+        }
+        return rows;
+    }
+
+    /**
+     * Поколоночное сканирование таблицы: столбцы буфера читаются в массивы примитивов порциями
+     * по {@link ColumnarBatch#getCapacity()} строк, каждая заполненная порция передаётся обработчику.
+     *
+     * @param conn       соединение с БД.
+     * @param tableName  наименование таблицы.
+     * @param criterions условие отбора.
+     * @param batch      буфер, задающий столбцы и их типы.
+     * @param handler    обработчик заполненной порции.
+     *
+     * @return количество прочитанных строк.
+     *
+     * @throws IllegalArgumentException если в буфере нет столбцов.
+     */
+    public static int scan(Connection conn, String tableName, QueryCriteria criterions, ColumnarBatch batch, IColumnarBatchHandler handler) {
+        checkColumns(batch);
+        String sql = advise(tableName, criterions, SQLBuilder.get().select(tableName, Arrays.asList(batch.getLabels()), criterions.getSql()));
+        return scan(conn, sql, criterions.getValues(), null, batch, handler);
+    }
+
+    /**
+     * Поколоночное сканирование результата текстового SQL-запроса; столбцы буфера ищутся по наименованию.
+     *
+     * @return количество прочитанных строк.
+     *
+     * @throws IllegalArgumentException если в буфере нет столбцов.
+     */
+    public static int scan(Connection conn, String sql, ColumnarBatch batch, IColumnarBatchHandler handler) {
+        checkColumns(batch);
+        return scan(conn, sql, Collections.emptyList(), batch.getLabels(), batch, handler);
     }
 }
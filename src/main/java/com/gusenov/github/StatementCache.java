@@ -0,0 +1,148 @@
+package com.gusenov.github;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ограниченный LRU-кэш подготовленных запросов одного соединения, ключ — текст SQL.
+ *
+ * Запрос выдаётся вызывающему через {@link #acquire(String)} и на время использования изымается из кэша,
+ * поэтому вложенные вызовы с тем же SQL (например, из обработчика результатов) получают отдельный запрос.
+ * После использования запрос возвращается через {@link #release(String, PreparedStatement)}.
+ *
+ * @see <a href="https://www.sqlite.org/c3ref/prepare.html">Compiling An SQL Statement</a>
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/util/LinkedHashMap.html#removeEldestEntry-java.util.Map.Entry-">LinkedHashMap.removeEldestEntry</a>
+ */
+public class StatementCache {
+    private final Connection conn;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<String, PreparedStatement> idle;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    private long invalidations = 0;
+
+    private int generation = 0;
+
+    private final Map<PreparedStatement, Integer> checkedOut = new IdentityHashMap<>();
+
+    public StatementCache(Connection conn, int maxSize) {
+        this.conn = conn;
+        this.maxSize = maxSize;
+        this.idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    evictions++;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Взять подготовленный запрос из кэша или подготовить новый.
+     *
+     * @param sql текст запроса.
+     */
+    public synchronized PreparedStatement acquire(String sql) throws SQLException {
+        PreparedStatement pstmt = idle.remove(sql);
+        if (pstmt != null) {
+            hits++;
+        } else {
+            misses++;
+            pstmt = conn.prepareStatement(sql);
+        }
+        checkedOut.put(pstmt, generation);
+        return pstmt;
+    }
+
+    /**
+     * Вернуть запрос в кэш. Запросы, выданные до {@link #invalidate()}, закрываются.
+     *
+     * @param sql   текст запроса.
+     * @param pstmt запрос, полученный из {@link #acquire(String)}.
+     */
+    public synchronized void release(String sql, PreparedStatement pstmt) {
+        Integer acquiredGeneration = checkedOut.remove(pstmt);
+        if (acquiredGeneration == null || acquiredGeneration != generation || maxSize <= 0) {
+            closeQuietly(pstmt);
+            return;
+        }
+        try {
+            pstmt.clearParameters();
+        } catch (SQLException e) {
+            closeQuietly(pstmt);
+            return;
+        }
+        PreparedStatement previous = idle.put(sql, pstmt);
+        if (previous != null) {
+            closeQuietly(previous);
+        }
+    }
+
+    /**
+     * Закрыть все закэшированные запросы, например, после изменения схемы БД.
+     */
+    public synchronized void invalidate() {
+        for (PreparedStatement pstmt : idle.values()) {
+            closeQuietly(pstmt);
+        }
+        idle.clear();
+        generation++;
+        invalidations++;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getSize() {
+        return idle.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized String toString() {
+        return String.format("StatementCache[size=%d/%d, hits=%d, misses=%d, evictions=%d, invalidations=%d]",
+                idle.size(), maxSize, hits, misses, evictions, invalidations);
+    }
+
+    private static void closeQuietly(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException e) {
+            SQLiteUtils.getLogger().fine("Failed to close cached statement: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,1005 @@
+package com.gusenov.github;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Загрузка таблицы из CSV/NDJSON и выгрузка в эти форматы.
+ *
+ * Чтение идёт из канала через буфер фиксированного размера, поля разбираются как байты: строка создаётся
+ * только для значений текстовых столбцов, целые числа разбираются без промежуточной строки.
+ * Значения приводятся к типу по объявленному типу столбца ({@code PRAGMA table_info}) по правилам
+ * родства типов SQLite. Строки вставляются через {@link BatchInserter} порциями в отдельных транзакциях
+ * (в транзакции вызывающего — в точках сохранения); при ошибке откатывается только незафиксированная порция.
+ *
+ * Выгрузка читает {@link ResultSet} построчно и пишет байты в канал через буфер фиксированного размера,
+ * поэтому расход памяти не зависит от размера таблицы. BLOB выгружаются литералом SQLite {@code x'0001ff'}:
+ * в CSV — полем без кавычек, в NDJSON — строкой; текст, начинающийся с {@code x'}, в CSV всегда берётся в кавычки,
+ * а в NDJSON его первый символ экранируется, поэтому при загрузке как BLOB читаются только литералы BLOB.
+ *
+ * @see <a href="https://www.sqlite.org/datatype3.html#determination_of_column_affinity">Determination Of Column Affinity</a>
+ * @see <a href="https://www.sqlite.org/pragma.html#pragma_table_info">PRAGMA table_info</a>
+ * @see <a href="https://www.sqlite.org/lang_expr.html#literal_values_constants_">Literal Values (Constants)</a>
+ */
+public final class TableTransfer {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private TableTransfer() {
+    }
+
+    /**
+     * Родство типа столбца.
+     */
+    enum Affinity {
+        INTEGER, TEXT, BLOB, REAL, NUMERIC,
+        /** тип не объявлен: значения сохраняются как есть. */
+        NONE;
+
+        static Affinity of(String declaredType) {
+            String type = declaredType == null ? "" : declaredType.toUpperCase();
+            if (type.contains("INT")) {
+                return INTEGER;
+            }
+            if (type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT")) {
+                return TEXT;
+            }
+            if (type.contains("BLOB")) {
+                return BLOB;
+            }
+            if (type.isEmpty()) {
+                return NONE;
+            }
+            if (type.contains("REAL") || type.contains("FLOA") || type.contains("DOUB")) {
+                return REAL;
+            }
+            return NUMERIC;
+        }
+    }
+
+    private static final class Column {
+        private final String name;
+
+        private final byte[] utf8;
+
+        private final Affinity affinity;
+
+        Column(String name, Affinity affinity) {
+            this.name = name;
+            this.utf8 = name.getBytes(StandardCharsets.UTF_8);
+            this.affinity = affinity;
+        }
+
+        boolean matches(byte[] data, int start, int end) {
+            if (end - start != utf8.length) {
+                return false;
+            }
+            for (int i = 0; i < utf8.length; i++) {
+                if (data[start + i] != utf8[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Объявленные типы столбцов таблицы, ключ — наименование без учёта регистра.
+     */
+    static Map<String, Affinity> getAffinities(Connection conn, String tableName) throws SQLException {
+        Map<String, Affinity> affinities = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + tableName + ");")) {
+            while (rs.next()) {
+                affinities.put(rs.getString("name"), Affinity.of(rs.getString("type")));
+            }
+        }
+        if (affinities.isEmpty()) {
+            throw new SQLException("No such table: " + tableName);
+        }
+        return affinities;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Загрузка
+    // ---------------------------------------------------------------------------------------------------------------
+
+    /** строка CSV или JSON-строка. */
+    private static final byte TEXT = 0;
+
+    /** число JSON. */
+    private static final byte NUMBER = 1;
+
+    private static final byte NULL = 2;
+
+    private static final byte TRUE = 3;
+
+    private static final byte FALSE = 4;
+
+    /** литерал BLOB {@code x'…'}: поле CSV без кавычек или JSON-строка с неэкранированным {@code x'} в начале. */
+    private static final byte HEX_BLOB = 5;
+
+    /**
+     * Разобранная запись: поля хранятся подряд в одном массиве байт.
+     */
+    private static final class Record {
+        private byte[] data = new byte[1024];
+
+        private int length = 0;
+
+        private int count = 0;
+
+        private int[] starts = new int[16];
+
+        private int[] ends = new int[16];
+
+        private byte[] kinds = new byte[16];
+
+        void clear() {
+            length = 0;
+            count = 0;
+        }
+
+        void append(int b) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, length * 2);
+            }
+            data[length++] = (byte) b;
+        }
+
+        void appendCodePoint(int cp) {
+            if (cp < 0x80) {
+                append(cp);
+            } else if (cp < 0x800) {
+                append(0xC0 | (cp >> 6));
+                append(0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                append(0xE0 | (cp >> 12));
+                append(0x80 | ((cp >> 6) & 0x3F));
+                append(0x80 | (cp & 0x3F));
+            } else {
+                append(0xF0 | (cp >> 18));
+                append(0x80 | ((cp >> 12) & 0x3F));
+                append(0x80 | ((cp >> 6) & 0x3F));
+                append(0x80 | (cp & 0x3F));
+            }
+        }
+
+        /**
+         * Начать поле с текущей позиции; закончить — {@link #endField(byte)}.
+         */
+        void startField() {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                kinds = Arrays.copyOf(kinds, count * 2);
+            }
+            starts[count] = length;
+        }
+
+        void endField(byte kind) {
+            ends[count] = length;
+            kinds[count] = kind;
+            count++;
+        }
+
+        String getString(int field) {
+            return new String(data, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Последовательное чтение байт из канала через буфер.
+     */
+    private abstract static class RecordReader {
+        private final ReadableByteChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private final byte[] buf = buffer.array();
+
+        private int pos = 0;
+
+        private int limit = 0;
+
+        long records = 0;
+
+        RecordReader(ReadableByteChannel channel) throws IOException {
+            this.channel = channel;
+            // метка порядка байт UTF-8
+            if (peek() == 0xEF && fill(3) && (buf[pos + 1] & 0xFF) == 0xBB && (buf[pos + 2] & 0xFF) == 0xBF) {
+                pos += 3;
+            }
+        }
+
+        /**
+         * Дочитать буфер так, чтобы в нём было не меньше {@code n} байт, если канал не закончился.
+         */
+        private boolean fill(int n) throws IOException {
+            if (limit - pos >= n) {
+                return true;
+            }
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            while (limit < n) {
+                buffer.limit(buf.length).position(limit);
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        final int peek() throws IOException {
+            return pos < limit || fill(1) ? buf[pos] & 0xFF : -1;
+        }
+
+        final int next() throws IOException {
+            return pos < limit || fill(1) ? buf[pos++] & 0xFF : -1;
+        }
+
+        final IOException error(String message) {
+            return new IOException("Record " + (records + 1) + ": " + message);
+        }
+
+        /**
+         * @return {@code false}, если записи закончились.
+         */
+        abstract boolean read(Record record) throws IOException;
+    }
+
+    private static final class CsvReader extends RecordReader {
+        CsvReader(ReadableByteChannel channel) throws IOException {
+            super(channel);
+        }
+
+        @Override
+        boolean read(Record record) throws IOException {
+            record.clear();
+            while (true) {
+                int c = peek();
+                if (c < 0) {
+                    return false;
+                }
+                if (c == '\r' || c == '\n') {
+                    // пустая строка
+                    next();
+                    continue;
+                }
+                break;
+            }
+            while (true) {
+                record.startField();
+                int c = next();
+                if (c == '"') {
+                    while (true) {
+                        c = next();
+                        if (c < 0) {
+                            throw error("unterminated quoted field");
+                        }
+                        if (c == '"') {
+                            if (peek() != '"') {
+                                break;
+                            }
+                            next();
+                        }
+                        record.append(c);
+                    }
+                    record.endField(TEXT);
+                    c = next();
+                } else {
+                    while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+                        record.append(c);
+                        c = next();
+                    }
+                    record.endField(fieldKind(record));
+                }
+                if (c == ',') {
+                    continue;
+                }
+                if (c == '\r' && peek() == '\n') {
+                    next();
+                } else if (c != '\r' && c != '\n' && c >= 0) {
+                    throw error("unexpected character after quoted field: " + (char) c);
+                }
+                records++;
+                return true;
+            }
+        }
+    }
+
+    private static final class NdjsonReader extends RecordReader {
+        /**
+         * Ключи хранятся в записи как поля с чётными номерами, значения — с нечётными.
+         */
+        NdjsonReader(ReadableByteChannel channel) throws IOException {
+            super(channel);
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                next();
+                c = peek();
+            }
+            return c;
+        }
+
+        private void expect(int expected) throws IOException {
+            int c = next();
+            if (c != expected) {
+                throw error("expected '" + (char) expected + "' but got " + (c < 0 ? "end of input" : "'" + (char) c + "'"));
+            }
+        }
+
+        private void expectWord(String word, Record record, byte kind) throws IOException {
+            record.startField();
+            for (int i = 0; i < word.length(); i++) {
+                expect(word.charAt(i));
+            }
+            record.endField(kind);
+        }
+
+        private int hex() throws IOException {
+            int c = next();
+            int digit = Character.digit(c, 16);
+            if (c < 0 || digit < 0) {
+                throw error("invalid \\u escape");
+            }
+            return digit;
+        }
+
+        private int unicodeEscape() throws IOException {
+            return (hex() << 12) | (hex() << 8) | (hex() << 4) | hex();
+        }
+
+        private void string(Record record) throws IOException {
+            expect('"');
+            record.startField();
+            boolean literal = peek() == 'x';
+            while (true) {
+                int c = next();
+                if (c < 0) {
+                    throw error("unterminated string");
+                }
+                if (c == '"') {
+                    break;
+                }
+                if (c != '\\') {
+                    record.append(c);
+                    continue;
+                }
+                c = next();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        record.append(c);
+                        break;
+                    case 'b':
+                        record.append('\b');
+                        break;
+                    case 'f':
+                        record.append('\f');
+                        break;
+                    case 'n':
+                        record.append('\n');
+                        break;
+                    case 'r':
+                        record.append('\r');
+                        break;
+                    case 't':
+                        record.append('\t');
+                        break;
+                    case 'u':
+                        int cp = unicodeEscape();
+                        if (Character.isHighSurrogate((char) cp) && peek() == '\\') {
+                            next();
+                            expect('u');
+                            int low = unicodeEscape();
+                            cp = Character.isLowSurrogate((char) low) ? Character.toCodePoint((char) cp, (char) low) : '?';
+                        }
+                        record.appendCodePoint(cp);
+                        break;
+                    default:
+                        throw error("invalid escape \\" + (char) c);
+                }
+            }
+            record.endField(literal && isHexBlob(record) ? HEX_BLOB : TEXT);
+        }
+
+        private void value(Record record) throws IOException {
+            int c = peek();
+            if (c == '"') {
+                string(record);
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                record.startField();
+                while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+                    record.append(next());
+                    c = peek();
+                }
+                record.endField(NUMBER);
+            } else if (c == 't') {
+                expectWord("true", record, TRUE);
+            } else if (c == 'f') {
+                expectWord("false", record, FALSE);
+            } else if (c == 'n') {
+                expectWord("null", record, NULL);
+            } else if (c == '{' || c == '[') {
+                throw error("nested objects and arrays are not supported");
+            } else {
+                throw error("unexpected " + (c < 0 ? "end of input" : "character '" + (char) c + "'"));
+            }
+        }
+
+        @Override
+        boolean read(Record record) throws IOException {
+            record.clear();
+            if (skipWhitespace() < 0) {
+                return false;
+            }
+            expect('{');
+            int c = skipWhitespace();
+            if (c == '}') {
+                next();
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    string(record);
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    value(record);
+                    c = skipWhitespace();
+                    next();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw error("expected ',' or '}'");
+                    }
+                }
+            }
+            c = peek();
+            while (c == ' ' || c == '\t' || c == '\r') {
+                next();
+                c = peek();
+            }
+            if (c >= 0 && c != '\n') {
+                throw error("expected one object per line");
+            }
+            records++;
+            return true;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Целое число из байт без создания строки или {@code null}, если поле не является целым числом.
+     */
+    private static Long parseLong(byte[] data, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            if (i < end && end - i <= 20) {
+                try {
+                    return Long.parseLong(new String(data, start, end - start, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            if (!isDigit(data[i])) {
+                return null;
+            }
+            value = value * 10 + (data[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static Double parseDouble(byte[] data, int start, int end) {
+        if (start == end || !(isDigit(data[start]) || data[start] == '-' || data[start] == '+' || data[start] == '.')) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(new String(data, start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Вид поля CSV без кавычек: пустое — NULL, с {@code x'} в начале — литерал BLOB, иначе строка.
+     */
+    private static byte fieldKind(Record record) {
+        if (record.length == record.starts[record.count]) {
+            return NULL;
+        }
+        return isHexBlob(record) ? HEX_BLOB : TEXT;
+    }
+
+    /**
+     * Начинается ли текущее поле с {@code x'}.
+     */
+    private static boolean isHexBlob(Record record) {
+        int start = record.starts[record.count];
+        return record.length - start >= 2 && record.data[start] == 'x' && record.data[start + 1] == '\'';
+    }
+
+    /**
+     * @return байты литерала {@code x'…'} или {@code null}, если между кавычками не чётное число шестнадцатеричных цифр.
+     */
+    private static byte[] parseHex(Record record, int field) {
+        int start = record.starts[field] + 2;
+        int end = record.ends[field] - 1;
+        if (end < start || record.data[end] != '\'' || (end - start) % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[(end - start) / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(record.data[start + 2 * i], 16);
+            int lo = Character.digit(record.data[start + 2 * i + 1], 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    private static Object numeric(Record record, int field) {
+        Long integer = parseLong(record.data, record.starts[field], record.ends[field]);
+        if (integer != null) {
+            return integer;
+        }
+        Double number = parseDouble(record.data, record.starts[field], record.ends[field]);
+        return number != null ? number : record.getString(field);
+    }
+
+    /**
+     * Привести поле к типу столбца. Значение, которое не удаётся привести, остаётся строкой, как в SQLite.
+     */
+    private static Object coerce(Affinity affinity, Record record, int field) {
+        byte kind = record.kinds[field];
+        switch (kind) {
+            case NULL:
+                return null;
+            case TRUE:
+                return 1L;
+            case FALSE:
+                return 0L;
+            case HEX_BLOB:
+                byte[] bytes = parseHex(record, field);
+                if (bytes != null) {
+                    return bytes;
+                }
+                break;
+            default:
+                break;
+        }
+        byte[] data = record.data;
+        int start = record.starts[field];
+        int end = record.ends[field];
+        switch (affinity) {
+            case TEXT:
+                return record.getString(field);
+            case BLOB:
+            case NONE:
+                return kind == NUMBER ? numeric(record, field) : record.getString(field);
+            case INTEGER:
+            case NUMERIC:
+                return numeric(record, field);
+            case REAL:
+                Double real = parseDouble(data, start, end);
+                return real != null ? real : record.getString(field);
+            default:
+                throw new IllegalStateException(affinity.toString());
+        }
+    }
+
+    /**
+     * Загрузить строки в существующую таблицу.
+     *
+     * @param conn      соединение с БД.
+     * @param tableName наименование таблицы.
+     * @param format    формат данных.
+     * @param channel   источник данных в UTF-8; не закрывается.
+     * @param options   размер порции транзакции.
+     *
+     * @return итог по зафиксированным строкам.
+     *
+     * @throws IOException  если данные не удалось прочитать или разобрать; порции до ошибки остаются зафиксированными.
+     * @throws SQLException если строку не удалось вставить; порции до ошибки остаются зафиксированными.
+     */
+    public static BatchInserter.Result importFrom(Connection conn, String tableName, DataFormat format,
+                                                  ReadableByteChannel channel, BatchInserter.Options options)
+            throws IOException, SQLException {
+        Map<String, Affinity> affinities = getAffinities(conn, tableName);
+        RecordReader reader = format == DataFormat.CSV ? new CsvReader(channel) : new NdjsonReader(channel);
+        Record record = new Record();
+        List<Column> columns = new ArrayList<>();
+        SortedMap<String, Object> row = new TreeMap<>();
+
+        BatchInserter inserter = new BatchInserter(conn, tableName, options);
+        try {
+            if (format == DataFormat.CSV) {
+                if (!reader.read(record)) {
+                    inserter.close();
+                    return inserter.getResult();
+                }
+                for (int i = 0; i < record.count; i++) {
+                    String name = record.getString(i);
+                    columns.add(new Column(name, affinities.getOrDefault(name, Affinity.NONE)));
+                }
+                // ключи строки одни и те же, меняются только значения
+                while (reader.read(record)) {
+                    if (record.count != columns.size()) {
+                        throw reader.error("expected " + columns.size() + " fields but got " + record.count);
+                    }
+                    for (int i = 0; i < record.count; i++) {
+                        Column column = columns.get(i);
+                        row.put(column.name, coerce(column.affinity, record, i));
+                    }
+                    inserter.add(row);
+                }
+            } else {
+                while (reader.read(record)) {
+                    row.clear();
+                    for (int i = 0; i < record.count; i += 2) {
+                        Column column = findColumn(columns, affinities, record, i);
+                        row.put(column.name, coerce(column.affinity, record, i + 1));
+                    }
+                    if (!row.isEmpty()) {
+                        inserter.add(row);
+                    }
+                }
+            }
+            inserter.close();
+        } catch (IOException | SQLException | RuntimeException e) {
+            try {
+                inserter.rollback();
+                inserter.close();
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return inserter.getResult();
+    }
+
+    private static Column findColumn(List<Column> columns, Map<String, Affinity> affinities, Record record, int field) {
+        for (Column column : columns) {
+            if (column.matches(record.data, record.starts[field], record.ends[field])) {
+                return column;
+            }
+        }
+        String name = record.getString(field);
+        Column column = new Column(name, affinities.getOrDefault(name, Affinity.NONE));
+        columns.add(column);
+        return column;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Выгрузка
+    // ---------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Запись байт в канал через буфер.
+     */
+    private static final class ByteWriter {
+        private final WritableByteChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private final byte[] buf = buffer.array();
+
+        private final byte[] digits = new byte[20];
+
+        private int pos = 0;
+
+        ByteWriter(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(int b) throws IOException {
+            if (pos == buf.length) {
+                flush();
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                write(b);
+            }
+        }
+
+        void writeLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            if (value < 0) {
+                write('-');
+                value = -value;
+            }
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            while (i < digits.length) {
+                write(digits[i++]);
+            }
+        }
+
+        /**
+         * Литерал BLOB {@code x'…'}.
+         */
+        void writeHex(byte[] bytes) throws IOException {
+            write('x');
+            write('\'');
+            for (byte b : bytes) {
+                write(HEX[(b >> 4) & 0xF]);
+                write(HEX[b & 0xF]);
+            }
+            write('\'');
+        }
+
+        /**
+         * Символ в UTF-8; суррогатные пары кодируются одной последовательностью.
+         *
+         * @return количество использованных символов строки.
+         */
+        int writeChar(CharSequence s, int i) throws IOException {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xC0 | (c >> 6));
+                write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(i + 1));
+                write(0xF0 | (cp >> 18));
+                write(0x80 | ((cp >> 12) & 0x3F));
+                write(0x80 | ((cp >> 6) & 0x3F));
+                write(0x80 | (cp & 0x3F));
+                return 2;
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                write(0xE0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3F));
+                write(0x80 | (c & 0x3F));
+            }
+            return 1;
+        }
+
+        void writeCsv(String s) throws IOException {
+            boolean quote = s.isEmpty() || s.startsWith("x'");
+            for (int i = 0; i < s.length() && !quote; i++) {
+                char c = s.charAt(i);
+                quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+            }
+            if (quote) {
+                write('"');
+            }
+            for (int i = 0; i < s.length(); ) {
+                if (s.charAt(i) == '"') {
+                    write('"');
+                }
+                i += writeChar(s, i);
+            }
+            if (quote) {
+                write('"');
+            }
+        }
+
+        void writeJson(String s) throws IOException {
+            write('"');
+            for (int i = 0; i < s.length(); ) {
+                char c = s.charAt(i);
+                if (i == 0 && s.startsWith("x'")) {
+                    // текст, а не литерал BLOB
+                    write(UNICODE_X);
+                } else if (c == '"' || c == '\\') {
+                    write('\\');
+                    write(c);
+                } else if (c == '\n') {
+                    write('\\');
+                    write('n');
+                } else if (c == '\r') {
+                    write('\\');
+                    write('r');
+                } else if (c == '\t') {
+                    write('\\');
+                    write('t');
+                } else if (c < 0x20) {
+                    write('\\');
+                    write('u');
+                    write('0');
+                    write('0');
+                    write(HEX[c >> 4]);
+                    write(HEX[c & 0xF]);
+                } else {
+                    i += writeChar(s, i);
+                    continue;
+                }
+                i++;
+            }
+            write('"');
+        }
+
+        void flush() throws IOException {
+            buffer.limit(pos).position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            pos = 0;
+        }
+    }
+
+    private static void writeValue(ByteWriter writer, DataFormat format, Object value) throws IOException {
+        if (value == null) {
+            if (format == DataFormat.NDJSON) {
+                writer.write(NULL_BYTES);
+            }
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writer.writeLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                if (format == DataFormat.NDJSON) {
+                    writer.write(NULL_BYTES);
+                }
+            } else {
+                writer.write(Double.toString(d).getBytes(StandardCharsets.US_ASCII));
+            }
+        } else if (value instanceof byte[]) {
+            if (format == DataFormat.NDJSON) {
+                writer.write('"');
+            }
+            writer.writeHex((byte[]) value);
+            if (format == DataFormat.NDJSON) {
+                writer.write('"');
+            }
+        } else if (format == DataFormat.CSV) {
+            writer.writeCsv(value.toString());
+        } else {
+            writer.writeJson(value.toString());
+        }
+    }
+
+    private static final byte[] NULL_BYTES = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] UNICODE_X = "\\u0078".getBytes(StandardCharsets.US_ASCII);
+
+    private static long export(Connection conn, String sql, List<Object> values, DataFormat format,
+                               WritableByteChannel channel) throws IOException, SQLException {
+        long start = System.nanoTime();
+
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = SQLiteUtils.acquireStatement(conn, sql);
+            long prepared = System.nanoTime();
+            SQLiteUtils.setValuesForStatement(pstmt, 1, values);
+            ByteWriter writer = new ByteWriter(channel);
+            long rows = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int count = meta.getColumnCount();
+                byte[][] labels = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    // наименования кодируются один раз на выгрузку
+                    ByteWriter label = new ByteWriter(null);
+                    if (format == DataFormat.CSV) {
+                        label.writeCsv(meta.getColumnLabel(i + 1));
+                    } else {
+                        label.writeJson(meta.getColumnLabel(i + 1));
+                        label.write(':');
+                    }
+                    labels[i] = Arrays.copyOf(label.buf, label.pos);
+                }
+                if (format == DataFormat.CSV) {
+                    for (int i = 0; i < count; i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(labels[i]);
+                    }
+                    writer.write('\r');
+                    writer.write('\n');
+                }
+                while (rs.next()) {
+                    if (format == DataFormat.NDJSON) {
+                        writer.write('{');
+                    }
+                    for (int i = 0; i < count; i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        if (format == DataFormat.NDJSON) {
+                            writer.write(labels[i]);
+                        }
+                        writeValue(writer, format, rs.getObject(i + 1));
+                    }
+                    if (format == DataFormat.NDJSON) {
+                        writer.write('}');
+                    } else {
+                        writer.write('\r');
+                    }
+                    writer.write('\n');
+                    rows++;
+                }
+            }
+            writer.flush();
+            SQLiteUtils.recordQuery(sql, start, prepared, rows, values);
+            return rows;
+        } catch (SQLException e) {
+            SQLiteUtils.recordFailure(sql, start, values, e);
+            throw e;
+        } finally {
+            SQLiteUtils.releaseStatement(conn, sql, pstmt);
+            SQLiteUtils.logSql(sql, start);
+        }
+    }
+
+    /**
+     * Выгрузить строки таблицы.
+     *
+     * @param conn       соединение с БД.
+     * @param tableName  наименование таблицы.
+     * @param columns    наименования столбцов (пустой список — все столбцы).
+     * @param criterions условие отбора строк.
+     * @param format     формат данных.
+     * @param channel    приёмник данных в UTF-8; не закрывается.
+     *
+     * @return количество выгруженных строк.
+     */
+    public static long exportTo(Connection conn, String tableName, List<String> columns, SQLiteUtils.QueryCriteria criterions,
+                                DataFormat format, WritableByteChannel channel) throws IOException, SQLException {
+        return export(conn, SQLiteUtils.advise(tableName, criterions, SQLBuilder.get().select(tableName, columns, criterions.getSql())), criterions.getValues(),
+                format, channel);
+    }
+
+    /**
+     * Выгрузить результат текстового SQL-запроса.
+     *
+     * @return количество выгруженных строк.
+     */
+    public static long exportTo(Connection conn, String sql, DataFormat format, WritableByteChannel channel)
+            throws IOException, SQLException {
+        return export(conn, sql, Collections.emptyList(), format, channel);
+    }
+}
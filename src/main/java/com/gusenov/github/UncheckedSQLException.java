@@ -0,0 +1,26 @@
+package com.gusenov.github;
+
+import java.sql.SQLException;
+
+/**
+ * Непроверяемая обёртка над {@link SQLException} для API, которые не могут объявить проверяемое исключение,
+ * например, {@link java.util.Iterator} и {@link java.util.stream.Stream}.
+ *
+ * @see <a href="https://docs.oracle.com/javase/8/docs/api/java/io/UncheckedIOException.html">UncheckedIOException</a>
+ */
+public class UncheckedSQLException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedSQLException(SQLException cause) {
+        super(cause);
+    }
+
+    public UncheckedSQLException(String message, SQLException cause) {
+        super(message, cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
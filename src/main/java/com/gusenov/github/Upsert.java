@@ -0,0 +1,107 @@
+package com.gusenov.github;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Описание вставки с обновлением при конфликте: {@code INSERT ... ON CONFLICT(target) DO UPDATE SET ...}.
+ *
+ * Для каждого столбца, не входящего в цель конфликта, задаётся правило обновления существующей строки;
+ * если все столбцы сохраняют прежние значения, генерируется {@code DO NOTHING}.
+ * Требуется SQLite 3.24 или новее, а цель конфликта должна совпадать с PRIMARY KEY или уникальным индексом.
+ *
+ * @see SQLiteUtils#upsert(java.sql.Connection, String, java.util.SortedMap, Upsert)
+ * @see SQLiteUtils#upsertAll(java.sql.Connection, String, Iterable, Upsert)
+ * @see <a href="https://www.sqlite.org/lang_UPSERT.html">UPSERT</a>
+ */
+public class Upsert {
+
+    /**
+     * Правило обновления столбца при конфликте.
+     */
+    public enum Policy {
+        /** взять новое значение. */
+        REPLACE,
+        /** оставить прежнее значение. */
+        KEEP,
+        /** взять новое значение, если оно не NULL. */
+        COALESCE,
+        /** прибавить новое значение к прежнему, например, для счётчиков. */
+        ADD
+    }
+
+    private final List<String> conflictColumns;
+
+    private final Map<String, Policy> policies = new HashMap<>();
+
+    private Policy defaultPolicy = Policy.REPLACE;
+
+    private int maxParameters = 999;
+
+    private int version = 0;
+
+    /**
+     * @param conflictColumns столбцы PRIMARY KEY или уникального индекса, по которым определяется конфликт.
+     */
+    public Upsert(String... conflictColumns) {
+        if (conflictColumns.length == 0) {
+            throw new IllegalArgumentException("Conflict target is empty");
+        }
+        this.conflictColumns = Arrays.asList(conflictColumns.clone());
+    }
+
+    public List<String> getConflictColumns() {
+        return conflictColumns;
+    }
+
+    public Policy getPolicy(String column) {
+        Policy policy = policies.get(column);
+        return policy != null ? policy : defaultPolicy;
+    }
+
+    /**
+     * @param column столбец.
+     * @param policy правило обновления этого столбца при конфликте.
+     */
+    public Upsert setPolicy(String column, Policy policy) {
+        policies.put(column, policy);
+        version++;
+        return this;
+    }
+
+    public Policy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * @param defaultPolicy правило для столбцов без собственного правила (по умолчанию REPLACE).
+     */
+    public Upsert setDefaultPolicy(Policy defaultPolicy) {
+        this.defaultPolicy = defaultPolicy;
+        version++;
+        return this;
+    }
+
+    public int getMaxParameters() {
+        return maxParameters;
+    }
+
+    /**
+     * @param maxParameters наибольшее количество параметров в одном запросе многострочной вставки,
+     *                      {@code SQLITE_MAX_VARIABLE_NUMBER}: 999 до SQLite 3.32, 32766 начиная с неё.
+     */
+    public Upsert setMaxParameters(int maxParameters) {
+        this.maxParameters = maxParameters;
+        version++;
+        return this;
+    }
+
+    /**
+     * Увеличивается при каждом изменении, чтобы сгенерированный SQL можно было переиспользовать.
+     */
+    int getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,247 @@
+package com.gusenov.github;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Привязка параметров запросов по типу значения.
+ *
+ * Привязчик выбирается по классу значения: сначала среди зарегистрированных для самого класса,
+ * затем для его суперклассов и интерфейсов. Выбор запоминается для класса, а {@link Plan} дополнительно
+ * запоминает его для каждой позиции параметра, поэтому при повторной привязке той же формы запроса
+ * поиск сводится к сравнению классов.
+ *
+ * Поддерживаются: числа и {@link Boolean} (как 0/1), {@link String}, {@link Character}, {@link BigDecimal}
+ * и {@link BigInteger} (как текст), {@code byte[]}, {@link ByteBuffer} и {@link InputStream} (как BLOB),
+ * {@link java.sql.Date}, {@link Time}, {@link Timestamp}, типы {@code java.time} (как текст ISO 8601,
+ * который понимают функции даты и времени SQLite), {@link UUID} и перечисления (как текст).
+ * Для прочих типов привязчик регистрируется через {@link #register(Class, IValueBinder)};
+ * значение незарегистрированного типа приводит к {@link SQLException}, а не молча остаётся непривязанным.
+ *
+ * @see <a href="https://www.sqlite.org/datatype3.html">Datatypes In SQLite</a>
+ * @see <a href="https://www.sqlite.org/lang_datefunc.html">Date And Time Functions</a>
+ */
+public final class ValueBinders {
+    private static final Map<Class<?>, IValueBinder<?>> registered = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, IValueBinder<Object>> resolved = new ConcurrentHashMap<>();
+
+    private static volatile int version = 0;
+
+    static {
+        register(String.class, PreparedStatement::setString);
+        register(Integer.class, PreparedStatement::setInt);
+        register(Long.class, PreparedStatement::setLong);
+        register(Double.class, PreparedStatement::setDouble);
+        register(Float.class, PreparedStatement::setFloat);
+        register(Short.class, PreparedStatement::setShort);
+        register(Byte.class, PreparedStatement::setByte);
+        register(Boolean.class, (pstmt, index, value) -> pstmt.setInt(index, value ? 1 : 0));
+        register(Character.class, (pstmt, index, value) -> pstmt.setString(index, String.valueOf(value)));
+        register(BigDecimal.class, PreparedStatement::setBigDecimal);
+        register(BigInteger.class, (pstmt, index, value) -> pstmt.setString(index, value.toString()));
+        register(byte[].class, PreparedStatement::setBytes);
+        register(ByteBuffer.class, (pstmt, index, value) -> pstmt.setBytes(index, toBytes(value)));
+        register(InputStream.class, (pstmt, index, value) -> pstmt.setBytes(index, readFully(value)));
+        register(java.sql.Date.class, PreparedStatement::setDate);
+        register(Time.class, PreparedStatement::setTime);
+        register(Timestamp.class, PreparedStatement::setTimestamp);
+        register(Instant.class, ValueBinders::bindText);
+        register(LocalDate.class, ValueBinders::bindText);
+        register(LocalTime.class, ValueBinders::bindText);
+        register(LocalDateTime.class, ValueBinders::bindText);
+        register(OffsetDateTime.class, ValueBinders::bindText);
+        register(OffsetTime.class, ValueBinders::bindText);
+        register(ZonedDateTime.class, (pstmt, index, value) -> pstmt.setString(index, value.toOffsetDateTime().toString()));
+        register(UUID.class, ValueBinders::bindText);
+        register(Enum.class, (pstmt, index, value) -> pstmt.setString(index, value.name()));
+    }
+
+    private ValueBinders() {
+    }
+
+    private static void bindText(PreparedStatement pstmt, int index, Object value) throws SQLException {
+        pstmt.setString(index, value.toString());
+    }
+
+    /**
+     * Зарегистрировать привязчик для класса и всех его наследников, для которых нет более точного привязчика.
+     * Заменяет ранее зарегистрированный привязчик этого класса, в том числе встроенный.
+     *
+     * @param type   класс или интерфейс значений.
+     * @param binder привязчик.
+     */
+    public static <T> void register(Class<T> type, IValueBinder<? super T> binder) {
+        registered.put(type, binder);
+        resolved.clear();
+        version++;
+    }
+
+    /**
+     * @return привязчик для значений класса {@code type}.
+     *
+     * @throws SQLException если ни для класса, ни для его суперклассов и интерфейсов привязчик не зарегистрирован.
+     */
+    @SuppressWarnings("unchecked")
+    public static IValueBinder<Object> forClass(Class<?> type) throws SQLException {
+        IValueBinder<Object> binder = resolved.get(type);
+        if (binder == null) {
+            binder = (IValueBinder<Object>) lookup(type);
+            if (binder == null) {
+                throw new SQLException("No value binder for " + type.getName()
+                        + ", register one with ValueBinders.register");
+            }
+            resolved.put(type, binder);
+        }
+        return binder;
+    }
+
+    /**
+     * Поиск в ширину: класс, его интерфейсы, затем суперкласс и его интерфейсы.
+     */
+    private static IValueBinder<?> lookup(Class<?> type) {
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            Class<?> candidate = queue.poll();
+            IValueBinder<?> binder = registered.get(candidate);
+            if (binder != null) {
+                return binder;
+            }
+            queue.addAll(Arrays.asList(candidate.getInterfaces()));
+            if (candidate.getSuperclass() != null) {
+                queue.add(candidate.getSuperclass());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Привязать значение; {@code null} привязывается как NULL.
+     */
+    public static void bind(PreparedStatement pstmt, int index, Object value) throws SQLException {
+        if (value == null) {
+            pstmt.setNull(index, Types.NULL);
+        } else {
+            forClass(value.getClass()).bind(pstmt, index, value);
+        }
+    }
+
+    /**
+     * Массив с содержимым буфера от позиции до предела. Если буфер целиком занимает свой массив,
+     * массив передаётся без копирования. Позиция буфера не меняется.
+     */
+    static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Прочитать поток до конца. Размер массива берётся из {@link InputStream#available()}, поэтому для потоков,
+     * знающих свою длину (файлы, массивы в памяти), байты читаются сразу в итоговый массив. Поток не закрывается.
+     */
+    static byte[] readFully(InputStream in) throws SQLException {
+        try {
+            byte[] bytes = new byte[Math.max(in.available(), 1)];
+            int length = 0;
+            while (true) {
+                if (length == bytes.length) {
+                    int next = in.read();
+                    if (next < 0) {
+                        return bytes;
+                    }
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, 8192));
+                    bytes[length++] = (byte) next;
+                }
+                int read = in.read(bytes, length, bytes.length - length);
+                if (read < 0) {
+                    return Arrays.copyOf(bytes, length);
+                }
+                length += read;
+            }
+        } catch (IOException e) {
+            throw new SQLException("Failed to read BLOB stream", e);
+        }
+    }
+
+    /**
+     * Запомненные привязчики позиций параметров одной формы запроса. Если класс значения в позиции
+     * совпадает с прошлым, привязчик берётся без поиска. Можно использовать из нескольких потоков:
+     * гонка приводит лишь к повторному поиску.
+     */
+    static final class Plan {
+        private static final class Slot {
+            final Class<?> type;
+
+            final IValueBinder<Object> binder;
+
+            final int version;
+
+            Slot(Class<?> type, IValueBinder<Object> binder, int version) {
+                this.type = type;
+                this.binder = binder;
+                this.version = version;
+            }
+        }
+
+        private Slot[] slots = new Slot[0];
+
+        /**
+         * Привязать значения подряд, начиная с параметра {@code index}; позиции плана отсчитываются от первого значения.
+         *
+         * @return номер следующего параметра.
+         */
+        int bind(PreparedStatement pstmt, int index, Iterable<?> values) throws SQLException {
+            int position = 0;
+            for (Object value : values) {
+                bind(pstmt, index++, position++, value);
+            }
+            return index;
+        }
+
+        void bind(PreparedStatement pstmt, int index, int position, Object value) throws SQLException {
+            if (value == null) {
+                pstmt.setNull(index, Types.NULL);
+                return;
+            }
+            Slot[] current = slots;
+            Slot slot = position < current.length ? current[position] : null;
+            if (slot == null || slot.type != value.getClass() || slot.version != version) {
+                int v = version;
+                slot = new Slot(value.getClass(), forClass(value.getClass()), v);
+                if (position >= current.length) {
+                    current = Arrays.copyOf(current, position + 1);
+                }
+                current[position] = slot;
+                slots = current;
+            }
+            slot.binder.bind(pstmt, index, value);
+        }
+    }
+}
@@ -1,17 +1,48 @@
 package com.gusenov.github;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SQLiteUtilsTest {
     /**
@@ -129,5 +160,1232 @@ public class SQLiteUtilsTest {
             criterions.andEquals("id", 3);
             SQLiteUtils.delete(conn, "warehouses", criterions);
         }
+
+        {
+            // пустое условие — ошибка, а не удаление всех строк
+            String count = "SELECT count(*) c FROM warehouses;";
+            List<Integer> before = SQLiteUtils.selectList(conn, count, new String[] {"c"}, (rs, c) -> rs.getInt(c[0]));
+            assertTrue(before.get(0) > 0);
+            SQLiteUtils.delete(conn, "warehouses", new SQLiteUtils.QueryCriteria());
+            assertEquals(before, SQLiteUtils.selectList(conn, count, new String[] {"c"}, (rs, c) -> rs.getInt(c[0])));
+            try {
+                SQLiteUtils.compileDelete("warehouses", new SQLiteUtils.QueryCriteria());
+                fail("DELETE without criteria compiled");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("without criteria"));
+            }
+        }
+    }
+
+    @Test
+    public void insertAll() {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        columns.put("capacity", "real");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        ArrayList<SortedMap<String, Object>> rows = new ArrayList<SortedMap<String, Object>>();
+        for (int i = 1; i <= 5; i++) {
+            SortedMap<String, Object> values = new TreeMap<String, Object>();
+            values.put("name", "Warehouse " + i);
+            values.put("capacity", i * 1000);
+            rows.add(values);
+        }
+
+        BatchInserter.Result result = SQLiteUtils.insertAll(conn, "warehouses", rows,
+                new BatchInserter.Options().setChunkRows(2).setReturnGeneratedKeys(true));
+        assertEquals(5, result.getRows());
+        assertEquals(3, result.getChunks());
+        assertArrayEquals(new long[] {1, 2, 3, 4, 5}, result.getGeneratedKeys());
+
+        final int[] count = {0};
+        SQLiteUtils.select(conn, "SELECT id FROM warehouses;", new SQLiteUtils.IQueryResultLoopBody() {
+            @Override
+            public void run(ResultSet rs) throws SQLException {
+                count[0]++;
+            }
+        });
+        assertEquals(5, count[0]);
+
+        // в транзакции вызывающего порции не фиксируют и не откатывают его изменения
+        try {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("INSERT INTO warehouses (name) VALUES ('Caller');");
+            }
+            SortedMap<String, Object> good = new TreeMap<String, Object>();
+            good.put("name", "Warehouse 6");
+            SortedMap<String, Object> bad = new TreeMap<String, Object>();
+            bad.put("name", null);
+            result = SQLiteUtils.insertAll(conn, "warehouses", Arrays.asList(good, bad),
+                    new BatchInserter.Options().setChunkRows(1));
+            assertEquals(1, result.getRows());
+            assertTrue(!conn.getAutoCommit());
+
+            count[0] = 0;
+            SQLiteUtils.select(conn, "SELECT id FROM warehouses;", rs -> count[0]++);
+            assertEquals(7, count[0]);
+
+            conn.rollback();
+            count[0] = 0;
+            SQLiteUtils.select(conn, "SELECT id FROM warehouses;", rs -> count[0]++);
+            assertEquals(5, count[0]);
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+                conn.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void statementCache() {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        for (int i = 0; i < 3; i++) {
+            values.put("name", "Warehouse " + i);
+            SQLiteUtils.insert(conn, "warehouses", values);
+        }
+
+        StatementCache cache = SQLiteUtils.getStatementCache(conn);
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getSize());
+
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getInvalidations());
+
+        SQLiteUtils.closeStatementCache(conn);
+    }
+
+    @Test
+    public void sqlBuilder() {
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        values.put("name", "Raw Materials");
+        values.put("capacity", 3000);
+        String insert = SQLBuilder.get().insert("warehouses", values);
+        assertEquals("INSERT INTO warehouses(capacity, name) VALUES(?, ?);", insert);
+        values.put("capacity", 4000);
+        assertSame(insert, SQLBuilder.get().insert("warehouses", values));
+
+        SortedMap<String, Object> criterions = new TreeMap<String, Object>();
+        criterions.put("id", 3);
+        assertEquals("UPDATE warehouses SET capacity = ?, name = ? WHERE id = ?",
+                SQLBuilder.get().update("warehouses", values, criterions));
+
+        SQLiteUtils.QueryCriteria criteria = new SQLiteUtils.QueryCriteria().andGreaterThan("capacity", 3600).orEquals("id", 1);
+        ArrayList<String> columns = new ArrayList<String>();
+        columns.add("id");
+        columns.add("name");
+        assertEquals("SELECT id, name FROM warehouses WHERE (capacity > ?) OR (id = ?)",
+                SQLBuilder.get().select("warehouses", columns, criteria.getSql()));
+        assertEquals("SELECT * FROM warehouses",
+                SQLBuilder.get().select("warehouses", new ArrayList<String>(), new SQLiteUtils.QueryCriteria().getSql()));
+        assertEquals("DELETE FROM warehouses WHERE (capacity > ?) OR (id = ?);",
+                SQLBuilder.get().delete("warehouses", criteria.getSql()));
+    }
+
+    @Test
+    public void compiledQuery() {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        for (int i = 1; i <= 3; i++) {
+            values.put("name", "Warehouse " + i);
+            SQLiteUtils.insert(conn, "warehouses", values);
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("name");
+        SQLiteUtils.CompiledQuery byId = SQLiteUtils.compileSelect("warehouses", names,
+                new SQLiteUtils.QueryCriteria().andEquals("id", null));
+        assertEquals(1, byId.getParameterCount());
+
+        final ArrayList<String> found = new ArrayList<String>();
+        SQLiteUtils.IQueryResultLoopBody collect = new SQLiteUtils.IQueryResultLoopBody() {
+            @Override
+            public void run(ResultSet rs) throws SQLException {
+                found.add(rs.getString(1));
+            }
+        };
+        SQLiteUtils.select(conn, byId, new Object[] {2}, collect);
+        SQLiteUtils.select(conn, byId, new Object[] {3}, collect);
+        assertEquals("[Warehouse 2, Warehouse 3]", found.toString());
+
+        SQLiteUtils.delete(conn, SQLiteUtils.compileDelete("warehouses",
+                new SQLiteUtils.QueryCriteria().andLessThan("id", null)), 3);
+        found.clear();
+        SQLiteUtils.select(conn, "SELECT name FROM warehouses;", collect);
+        assertEquals("[Warehouse 3]", found.toString());
+    }
+
+    @Test
+    public void stream() {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        columns.put("capacity", "real");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        for (int i = 1; i <= 10; i++) {
+            values.put("name", "Warehouse " + i);
+            values.put("capacity", i * 1000);
+            SQLiteUtils.insert(conn, "warehouses", values);
+        }
+
+        SQLiteUtils.QueryCriteria criterions = new SQLiteUtils.QueryCriteria().andGreaterThan("capacity", 3600);
+        try (Stream<Row> rows = SQLiteUtils.stream(conn, "warehouses", new ArrayList<String>(), criterions, 2)) {
+            assertEquals("[Warehouse 4, Warehouse 5]",
+                    rows.limit(2).map(row -> row.getString("name")).collect(Collectors.toList()).toString());
+        }
+
+        try (RowIterator rows = SQLiteUtils.iterate(conn, "SELECT id, capacity FROM warehouses ORDER BY id DESC;", 0)) {
+            Row row = rows.next();
+            assertEquals(10, row.getInt("id"));
+            assertEquals(10000.0, row.getDouble(2), 0.0);
+        }
+    }
+
+    @Test
+    public void rowMappers() {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        columns.put("capacity", "real");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        for (int i = 1; i <= 5; i++) {
+            values.put("name", "Warehouse " + i);
+            values.put("capacity", i * 1000);
+            SQLiteUtils.insert(conn, "warehouses", values);
+        }
+
+        List<String> names = SQLiteUtils.selectList(conn, "SELECT capacity, name FROM warehouses WHERE id <= 2;",
+                new String[] {"name"}, (rs, indexes) -> rs.getString(indexes[0]));
+        assertEquals("[Warehouse 1, Warehouse 2]", names.toString());
+
+        final int[] ids = new int[5];
+        final double[] capacities = new double[5];
+        ArrayList<String> selected = new ArrayList<String>();
+        selected.add("id");
+        selected.add("capacity");
+        int rows = SQLiteUtils.selectInto(conn, "warehouses", selected, new SQLiteUtils.QueryCriteria(),
+                (rs, row, indexes) -> {
+                    ids[row] = rs.getInt(indexes[0]);
+                    capacities[row] = rs.getDouble(indexes[1]);
+                });
+        assertEquals(5, rows);
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5}, ids);
+        assertEquals(5000.0, capacities[4], 0.0);
+
+        ColumnarBatch batch = new ColumnarBatch(2);
+        final int capacity = batch.addColumn("capacity", ColumnarBatch.Type.LONG);
+        final long[] total = {0, 0};
+        SQLiteUtils.scan(conn, "warehouses", new SQLiteUtils.QueryCriteria(), batch, b -> {
+            for (int i = 0; i < b.getSize(); i++) {
+                total[0] += b.getLongs(capacity)[i];
+            }
+            total[1]++;
+        });
+        assertEquals(15000, total[0]);
+        assertEquals(3, total[1]);
+
+        try {
+            SQLiteUtils.scan(conn, "warehouses", new SQLiteUtils.QueryCriteria(), new ColumnarBatch(2), b -> { });
+            assertTrue("empty batch must be rejected", false);
+        } catch (IllegalArgumentException e) {
+            assertEquals("ColumnarBatch has no columns", e.getMessage());
+        }
+    }
+
+    @Test
+    public void pool() throws Exception {
+        try (SQLitePool pool = new SQLitePool("tests.db", new SQLitePool.Options().setReaders(2))) {
+            pool.write(conn -> {
+                SortedMap<String, String> columns = new TreeMap<String, String>();
+                columns.put("id", "integer PRIMARY KEY");
+                columns.put("name", "text NOT NULL");
+                SQLiteUtils.createNewTable(conn, "warehouses", columns);
+                return null;
+            });
+
+            List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 1; i <= 20; i++) {
+                final SortedMap<String, Object> values = new TreeMap<String, Object>();
+                values.put("name", "Warehouse " + i);
+                writes.add(pool.submitWrite(conn -> {
+                    SQLiteUtils.insert(conn, "warehouses", values);
+                    return null;
+                }));
+            }
+            for (CompletableFuture<Void> write : writes) {
+                write.get();
+            }
+
+            int count = pool.read(conn -> {
+                final int[] rows = {0};
+                SQLiteUtils.select(conn, "SELECT id FROM warehouses;", rs -> rows[0]++);
+                return rows[0];
+            });
+            assertEquals(20, count);
+
+            SQLitePool.Stats stats = pool.getStats();
+            assertEquals(1, stats.getAcquisitions());
+            assertEquals(21, stats.getCompletedWrites());
+            assertEquals(0, stats.getReadersInUse());
+        }
+    }
+
+    @Test
+    public void poolReaderReopen() throws Exception {
+        File dir = new File("tests-pool");
+        File moved = new File("tests-pool-moved");
+        dir.mkdir();
+        try (SQLitePool pool = new SQLitePool("tests-pool/pool.db", new SQLitePool.Options()
+                .setReaders(1).setValidationIdleMillis(0).setAcquireTimeoutMillis(200))) {
+            Connection reader = pool.acquireReader();
+            reader.close();
+            pool.releaseReader(reader);
+
+            assertTrue(dir.renameTo(moved));
+            try {
+                pool.acquireReader();
+                assertTrue("reopening into a missing directory must fail", false);
+            } catch (SQLException e) {
+                assertTrue(!e.getMessage().contains("Timed out"));
+            } finally {
+                assertTrue(moved.renameTo(dir));
+            }
+
+            assertEquals(Integer.valueOf(1), pool.read(conn -> SQLiteUtils.selectList(conn, "SELECT 1 one;", new String[] {"one"},
+                    (rs, c) -> rs.getInt(c[0])).get(0)));
+            assertEquals(0, pool.getStats().getReadersInUse());
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        List<CompletableFuture<Integer>> writes = new ArrayList<CompletableFuture<Integer>>();
+        try (GroupCommitWriter writer = new GroupCommitWriter(conn, new GroupCommitWriter.Options().setMaxBatchSize(10))) {
+            SortedMap<String, Object> values = new TreeMap<String, Object>();
+            for (int i = 1; i <= 30; i++) {
+                values.put("name", "Warehouse " + i);
+                writes.add(writer.insert("warehouses", values));
+            }
+            values.clear();
+            values.put("id", 1);
+            values.put("name", null);
+            CompletableFuture<Integer> failed = writer.insert("warehouses", values);
+            writer.flush();
+
+            assertTrue(failed.isCompletedExceptionally());
+            assertTrue(writer.getBatches() >= 3);
+            assertEquals(32, writer.getWrites());
+            assertEquals(writer.getBatches(), writer.getBatchLatency().getCount());
+        }
+        for (CompletableFuture<Integer> write : writes) {
+            assertEquals(Integer.valueOf(1), write.get());
+        }
+
+        final int[] count = {0};
+        SQLiteUtils.select(conn, "SELECT id FROM warehouses;", rs -> count[0]++);
+        assertEquals(30, count[0]);
+
+        // записи, поставленные во время закрытия, либо выполняются, либо отклоняются
+        List<CompletableFuture<Integer>> racing = Collections.synchronizedList(new ArrayList<CompletableFuture<Integer>>());
+        GroupCommitWriter writer = new GroupCommitWriter(conn, new GroupCommitWriter.Options());
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread submitter = new Thread(() -> {
+                SortedMap<String, Object> values = new TreeMap<String, Object>();
+                values.put("name", "Racing");
+                for (int i = 0; i < 500; i++) {
+                    racing.add(writer.insert("warehouses", values));
+                }
+            });
+            submitter.start();
+            submitters.add(submitter);
+        }
+        writer.close();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        for (CompletableFuture<Integer> write : racing) {
+            assertTrue(write.isDone());
+        }
+        conn.close();
+    }
+
+    @Test
+    public void pragmaProfile() throws SQLException {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db", PragmaProfile.BULK_LOAD);
+        Map<String, String> actual = SQLiteUtils.applyPragmaProfile(conn, PragmaProfile.OLTP);
+        assertEquals("wal", actual.get("journal_mode"));
+        assertEquals("1", actual.get("synchronous"));
+        assertEquals("-65536", actual.get("cache_size"));
+        assertEquals("2", actual.get("temp_store"));
+        assertEquals("0", actual.get("query_only"));
+
+        actual = SQLiteUtils.applyPragmaProfile(conn, PragmaProfile.READ_ONLY_ANALYTICS);
+        assertEquals("1", actual.get("query_only"));
+        assertEquals("4096", actual.get("page_size"));
+        conn.close();
+
+        // в пуле journal_mode и query_only задаются по роли соединения, а не профилем
+        for (PragmaProfile profile : new PragmaProfile[] {PragmaProfile.READ_ONLY_ANALYTICS, PragmaProfile.BULK_LOAD}) {
+            try (SQLitePool pool = new SQLitePool("tests.db", new SQLitePool.Options().setReaders(1).setPragmaProfile(profile))) {
+                pool.write(c -> {
+                    try (Statement stmt = c.createStatement()) {
+                        return stmt.executeUpdate("CREATE TABLE IF NOT EXISTS profiles (name text);");
+                    }
+                });
+                assertEquals("wal", pool.read(c -> {
+                    try (Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA journal_mode;")) {
+                        return rs.next() ? rs.getString(1) : null;
+                    }
+                }));
+                assertEquals(Integer.valueOf(1), pool.read(c -> {
+                    try (Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA query_only;")) {
+                        return rs.next() ? rs.getInt(1) : null;
+                    }
+                }));
+            }
+        }
+    }
+
+    @Test
+    public void sqlLogMode() {
+        final List<String> messages = new ArrayList<String>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        SQLiteUtils.getLogger().addHandler(handler);
+        try {
+            Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+            SQLiteUtils.select(conn, "SELECT 1;", rs -> { });
+            assertTrue(messages.isEmpty());
+
+            SQLiteUtils.setSqlLogMode(SQLiteUtils.SqlLogMode.SLOW_ONLY);
+            SQLiteUtils.setSlowQueryThresholdMillis(0);
+            SQLiteUtils.select(conn, "SELECT 2;", rs -> { });
+            assertEquals(1, messages.size());
+            assertTrue(messages.get(0).endsWith("SELECT 2;"));
+        } finally {
+            SQLiteUtils.setSqlLogMode(SQLiteUtils.SqlLogMode.ALL);
+            SQLiteUtils.setSlowQueryThresholdMillis(100);
+            SQLiteUtils.getLogger().removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void queryMetrics() throws Exception {
+        HistogramQueryMetrics metrics = new HistogramQueryMetrics();
+        metrics.setSlowQueryThresholdMillis(0);
+        SQLiteUtils.setQueryMetrics(metrics);
+        try {
+            Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+            SortedMap<String, String> columns = new TreeMap<>();
+            columns.put("id", "integer PRIMARY KEY");
+            columns.put("name", "text NOT NULL");
+            SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+            for (int i = 1; i <= 3; i++) {
+                SortedMap<String, Object> values = new TreeMap<>();
+                values.put("name", "Warehouse " + i);
+                SQLiteUtils.insert(conn, "warehouses", values);
+            }
+            SQLiteUtils.select(conn, "warehouses", Collections.singletonList("name"),
+                    new SQLiteUtils.QueryCriteria().andGreaterThan("id", 1), rs -> { });
+            SQLiteUtils.delete(conn, "warehouses", new SQLiteUtils.QueryCriteria().andEquals("id", 1));
+            SQLiteUtils.select(conn, "SELECT * FROM missing;", rs -> { });
+
+            HistogramQueryMetrics.ShapeStats insert = metrics.getShape("INSERT INTO warehouses(name) VALUES(?);");
+            assertNotNull(insert);
+            assertEquals(3, insert.getCalls());
+            assertEquals(3, insert.getRows());
+            assertEquals("INSERT INTO warehouses(name) VALUES(?);", metrics.getShapes().get(0).getSql());
+            assertEquals(6, metrics.getTotalCalls());
+            assertEquals(1, metrics.getTotalErrors());
+
+            List<HistogramQueryMetrics.SlowQuery> slowQueries = metrics.getSlowQueries();
+            assertEquals(6, slowQueries.size());
+            assertNotNull(slowQueries.get(0).getError());
+            assertEquals(Collections.singletonList("1"), slowQueries.get(1).getParameters());
+            assertEquals(1, slowQueries.get(1).getRows());
+            assertEquals(2, slowQueries.get(2).getRows());
+
+            ObjectName name = metrics.registerMBean("tests");
+            try {
+                assertEquals(6L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TotalCalls"));
+            } finally {
+                metrics.unregisterMBean();
+            }
+        } finally {
+            SQLiteUtils.setQueryMetrics(null);
+        }
+        assertSame(IQueryMetrics.NO_OP, SQLiteUtils.getQueryMetrics());
+    }
+
+    @Test
+    public void resultCache() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, 60000);
+        SQLiteUtils.setResultCache(cache);
+        try {
+            Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+            SortedMap<String, String> columns = new TreeMap<>();
+            columns.put("id", "integer PRIMARY KEY");
+            columns.put("name", "text NOT NULL");
+            SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+            SortedMap<String, Object> values = new TreeMap<>();
+            values.put("name", "Raw Materials");
+            SQLiteUtils.insert(conn, "warehouses", values);
+
+            List<String> names = Collections.singletonList("name");
+            SQLiteUtils.QueryCriteria criterions = new SQLiteUtils.QueryCriteria().andEquals("id", 1);
+            List<Row> rows = SQLiteUtils.selectCached(conn, "warehouses", names, criterions);
+            assertEquals("Raw Materials", rows.get(0).getString("name"));
+            assertSame(rows, SQLiteUtils.selectCached(conn, "warehouses", names, new SQLiteUtils.QueryCriteria().andEquals("id", 1)));
+            assertEquals(0, SQLiteUtils.selectCached(conn, "warehouses", names, new SQLiteUtils.QueryCriteria().andEquals("id", 2)).size());
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            assertEquals(2, cache.getSize());
+
+            values.put("name", "Finished Goods");
+            SQLiteUtils.update(conn, "warehouses", values, new TreeMap<>(Collections.singletonMap("id", (Object) 1)));
+            assertEquals(0, cache.getSize());
+            assertEquals("Finished Goods", SQLiteUtils.selectCached(conn, "warehouses", names, criterions).get(0).getString(1));
+
+            SQLiteUtils.insertAll(conn, "warehouses", Collections.singletonList(values));
+            assertEquals(0, cache.getSize());
+
+            Connection reader = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+            try (GroupCommitWriter writer = new GroupCommitWriter(conn, new GroupCommitWriter.Options())) {
+                SortedMap<String, Object> renamed = new TreeMap<>(Collections.singletonMap("name", (Object) "Work in Progress"));
+                writer.submit(c -> {
+                    SQLiteUtils.update(c, "warehouses", renamed, new TreeMap<>(Collections.singletonMap("id", (Object) 1)));
+                    // до фиксации другое соединение читает прежнюю строку и кладёт её в кэш
+                    return SQLiteUtils.selectCached(reader, "warehouses", names, criterions).get(0).getString(1);
+                }).thenAccept(name -> assertEquals("Finished Goods", name)).get();
+            }
+            assertEquals("Work in Progress", SQLiteUtils.selectCached(reader, "warehouses", names, criterions).get(0).getString(1));
+            reader.close();
+
+            ResultCache small = new ResultCache(400, 0);
+            SQLiteUtils.setResultCache(small);
+            SQLiteUtils.selectCached(conn, "warehouses", names, criterions);
+            SQLiteUtils.selectCached(conn, "warehouses", names, new SQLiteUtils.QueryCriteria().andEquals("id", 2));
+            assertEquals(1, small.getSize());
+            assertEquals(1, small.getEvictions());
+            assertTrue(small.getWeight() <= small.getMaxWeight());
+        } finally {
+            SQLiteUtils.setResultCache(null);
+        }
+    }
+
+    @Test
+    public void resultCacheCallerTransaction() throws Exception {
+        ResultCache cache = new ResultCache(1 << 20, 0);
+        SQLiteUtils.setResultCache(cache);
+        try (Connection writer = SQLiteUtils.connectOrCreateNewDatabase("tests.db", PragmaProfile.OLTP);
+             Connection reader = SQLiteUtils.connectOrCreateNewDatabase("tests.db", PragmaProfile.OLTP)) {
+            SortedMap<String, String> columns = new TreeMap<>();
+            columns.put("id", "integer PRIMARY KEY");
+            columns.put("name", "text NOT NULL");
+            SQLiteUtils.createNewTable(writer, "warehouses", columns);
+            SQLiteUtils.insert(writer, "warehouses", new TreeMap<>(Collections.singletonMap("name", (Object) "old")));
+
+            List<String> names = Collections.singletonList("name");
+            SQLiteUtils.QueryCriteria criterions = new SQLiteUtils.QueryCriteria().andEquals("id", 1);
+            SortedMap<String, Object> key = new TreeMap<>(Collections.singletonMap("id", (Object) 1));
+
+            // транзакция вызывающего: до фиксации читается прежняя строка, но в кэш она не попадает
+            writer.setAutoCommit(false);
+            SQLiteUtils.update(writer, "warehouses", new TreeMap<>(Collections.singletonMap("name", (Object) "new")), key);
+            assertEquals("old", SQLiteUtils.selectCached(reader, "warehouses", names, criterions).get(0).getString(1));
+            assertEquals(0, cache.getSize());
+            writer.commit();
+            assertEquals("new", SQLiteUtils.selectCached(reader, "warehouses", names, criterions).get(0).getString(1));
+            for (int i = 0; i < 100 && PendingInvalidations.contains("warehouses"); i++) {
+                Thread.sleep(10);
+            }
+            SQLiteUtils.selectCached(reader, "warehouses", names, criterions);
+            assertEquals(1, cache.getSize());
+
+            // незавершённая транзакция закрытого соединения не мешает кэшированию и не удерживает соединение
+            Connection abandoned = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+            abandoned.setAutoCommit(false);
+            SQLiteUtils.update(abandoned, "warehouses", new TreeMap<>(Collections.singletonMap("name", (Object) "lost")), key);
+            assertTrue(PendingInvalidations.contains("warehouses"));
+            abandoned.close();
+            for (int i = 0; i < 100 && PendingInvalidations.contains("warehouses"); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(!PendingInvalidations.contains("warehouses"));
+            writer.setAutoCommit(true);
+        } finally {
+            SQLiteUtils.setResultCache(null);
+        }
+    }
+
+    @Test
+    public void parallelScan() throws Exception {
+        try (SQLitePool pool = new SQLitePool("tests.db", new SQLitePool.Options().setReaders(2))) {
+            pool.write(conn -> {
+                SortedMap<String, String> columns = new TreeMap<String, String>();
+                columns.put("id", "integer PRIMARY KEY");
+                columns.put("name", "text NOT NULL");
+                SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+                List<SortedMap<String, Object>> rows = new ArrayList<SortedMap<String, Object>>();
+                for (int i = 1; i <= 1000; i++) {
+                    SortedMap<String, Object> values = new TreeMap<String, Object>();
+                    values.put("name", "Warehouse " + i);
+                    rows.add(values);
+                }
+                SQLiteUtils.insertAll(conn, "warehouses", rows);
+                return null;
+            });
+
+            SQLiteUtils.QueryCriteria criterions = new SQLiteUtils.QueryCriteria()
+                    .andLessThanOrEqualTo("id", 100).orGreaterThan("id", 900);
+            ParallelScan scan = new ParallelScan(pool, "warehouses", Collections.singletonList("id"), criterions,
+                    new ParallelScan.Options().setPartitions(4));
+
+            List<SQLiteUtils.QueryCriteria> ranges = scan.partition();
+            assertEquals(4, ranges.size());
+            assertEquals("((id <= ?) OR (id > ?)) AND (rowid >= ?) AND (rowid < ?)", ranges.get(0).getSql().toString());
+            assertEquals("(id <= ?) OR (id > ?)", criterions.getSql().toString());
+
+            LongAdder sum = new LongAdder();
+            assertEquals(200, scan.forEach(row -> sum.add(row.getLong(1))));
+            assertEquals(5050 + 95050, sum.sum());
+
+            try (Stream<Row> rows = scan.stream()) {
+                assertEquals(100100, rows.mapToLong(row -> row.getLong("id")).sum());
+            }
+            assertEquals(0, pool.getStats().getReadersInUse());
+        }
+    }
+
+    @Test
+    public void tableTransfer() throws Exception {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        for (String tableName : new String[] {"warehouses", "csv_copy", "ndjson_copy"}) {
+            SortedMap<String, String> columns = new TreeMap<String, String>();
+            columns.put("id", "integer PRIMARY KEY");
+            columns.put("name", "text");
+            columns.put("capacity", "real");
+            columns.put("logo", "blob");
+            SQLiteUtils.createNewTable(conn, tableName, columns);
+        }
+
+        String[] names = {"Raw Materials", "Semi, \"finished\"", "Line\nbreak", "", null, "\u0421\u043a\u043b\u0430\u0434 \ud83d\udce6"};
+        List<SortedMap<String, Object>> rows = new ArrayList<SortedMap<String, Object>>();
+        for (int i = 0; i < names.length; i++) {
+            SortedMap<String, Object> values = new TreeMap<String, Object>();
+            values.put("name", names[i]);
+            values.put("capacity", i % 2 == 0 ? 1000.5 * i : null);
+            // BLOB, пустой BLOB и текст, похожий на шестнадцатеричную строку и на литерал BLOB
+            Object[] logos = {null, new byte[] {0, 1, (byte) 0xFF}, new byte[0], "cafe", "x'00'", null};
+            values.put("logo", logos[i]);
+            rows.add(values);
+        }
+        SQLiteUtils.insertAll(conn, "warehouses", rows);
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        assertEquals(6, TableTransfer.exportTo(conn, "SELECT * FROM warehouses ORDER BY id;", DataFormat.CSV, Channels.newChannel(csv)));
+        String text = new String(csv.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("capacity,id,logo,name\r\n0.0,1,,Raw Materials\r\n,2,x'0001ff',\"Semi, \"\"finished\"\"\"\r\n"));
+
+        BatchInserter.Result result = TableTransfer.importFrom(conn, "csv_copy", DataFormat.CSV,
+                Channels.newChannel(new ByteArrayInputStream(csv.toByteArray())), new BatchInserter.Options().setChunkRows(4));
+        assertEquals(6, result.getRows());
+        assertEquals(2, result.getChunks());
+
+        ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+        TableTransfer.exportTo(conn, "warehouses", new ArrayList<String>(), new SQLiteUtils.QueryCriteria(), DataFormat.NDJSON, Channels.newChannel(ndjson));
+        assertTrue(new String(ndjson.toByteArray(), StandardCharsets.UTF_8).startsWith("{\"capacity\":0.0,\"id\":1,\"logo\":null,\"name\":\"Raw Materials\"}\n"));
+        TableTransfer.importFrom(conn, "ndjson_copy", DataFormat.NDJSON,
+                Channels.newChannel(new ByteArrayInputStream(ndjson.toByteArray())), new BatchInserter.Options());
+
+        for (String tableName : new String[] {"csv_copy", "ndjson_copy"}) {
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            TableTransfer.exportTo(conn, "SELECT * FROM " + tableName + " ORDER BY id;", DataFormat.CSV, Channels.newChannel(copy));
+            assertEquals(text, new String(copy.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        List<Object> types = SQLiteUtils.selectList(conn, "SELECT typeof(capacity), typeof(logo), typeof(name) FROM csv_copy WHERE id = 2;",
+                new String[] {"typeof(capacity)", "typeof(logo)", "typeof(name)"},
+                (rs, columns) -> rs.getString(columns[0]) + "," + rs.getString(columns[1]) + "," + rs.getString(columns[2]));
+        assertEquals("null,blob,text", types.get(0));
+        for (String tableName : new String[] {"csv_copy", "ndjson_copy"}) {
+            assertEquals(Arrays.asList("blob:", "text:cafe", "text:x'00'"), SQLiteUtils.selectList(conn,
+                    "SELECT typeof(logo) || ':' || CAST(logo AS TEXT) l FROM " + tableName + " WHERE id BETWEEN 3 AND 5 ORDER BY id;",
+                    new String[] {"l"}, (rs, columns) -> rs.getString(columns[0])));
+        }
+    }
+
+    @Test
+    public void upsert() throws SQLException {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("code", "text PRIMARY KEY");
+        columns.put("name", "text NOT NULL");
+        columns.put("visits", "integer NOT NULL");
+        columns.put("note", "text");
+        SQLiteUtils.createNewTable(conn, "warehouses", columns);
+
+        Upsert upsert = new Upsert("code")
+                .setPolicy("visits", Upsert.Policy.ADD)
+                .setPolicy("note", Upsert.Policy.COALESCE);
+
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        values.put("code", "RM");
+        values.put("name", "Raw Materials");
+        values.put("visits", 1);
+        values.put("note", "first");
+        SQLiteUtils.upsert(conn, "warehouses", values, upsert);
+        values.put("name", "Raw Materials Store");
+        values.put("note", null);
+        SQLiteUtils.upsert(conn, "warehouses", values, upsert);
+
+        List<String> rows = SQLiteUtils.selectList(conn, "SELECT name, visits, note FROM warehouses;", new String[] {"name", "visits", "note"},
+                (rs, c) -> rs.getString(c[0]) + "," + rs.getInt(c[1]) + "," + rs.getString(c[2]));
+        assertEquals(Collections.singletonList("Raw Materials Store,2,first"), rows);
+
+        List<SortedMap<String, Object>> batch = new ArrayList<SortedMap<String, Object>>();
+        for (int i = 0; i < 5; i++) {
+            SortedMap<String, Object> row = new TreeMap<String, Object>();
+            row.put("code", i < 4 ? "W" + i : "RM");
+            row.put("name", "Warehouse " + i);
+            row.put("visits", 10);
+            row.put("note", null);
+            batch.add(row);
+        }
+        assertEquals(5, SQLiteUtils.upsertAll(conn, "warehouses", batch, upsert.setMaxParameters(8)));
+
+        rows = SQLiteUtils.selectList(conn, "SELECT code, name, visits, note FROM warehouses ORDER BY code;", new String[] {"code", "name", "visits", "note"},
+                (rs, c) -> rs.getString(c[0]) + "," + rs.getString(c[1]) + "," + rs.getInt(c[2]) + "," + rs.getString(c[3]));
+        assertEquals(Arrays.asList("RM,Warehouse 4,12,first", "W0,Warehouse 0,10,null", "W1,Warehouse 1,10,null",
+                "W2,Warehouse 2,10,null", "W3,Warehouse 3,10,null"), rows);
+
+        // в транзакции вызывающего ошибка откатывает только изменения upsertAll: первая порция применена, вторая нарушает NOT NULL
+        batch.get(0).put("visits", 1);
+        batch.get(4).put("name", null);
+        conn.setAutoCommit(false);
+        SQLiteUtils.update(conn, "warehouses", new TreeMap<>(Collections.singletonMap("note", (Object) "kept")),
+                new TreeMap<>(Collections.singletonMap("code", (Object) "W3")));
+        assertEquals(0, SQLiteUtils.upsertAll(conn, "warehouses", batch, upsert.setMaxParameters(8)));
+        conn.commit();
+        conn.setAutoCommit(true);
+        rows = SQLiteUtils.selectList(conn, "SELECT code, visits, note FROM warehouses WHERE code IN ('W0', 'W3') ORDER BY code;",
+                new String[] {"code", "visits", "note"}, (rs, c) -> rs.getString(c[0]) + "," + rs.getInt(c[1]) + "," + rs.getString(c[2]));
+        assertEquals(Arrays.asList("W0,10,null", "W3,10,kept"), rows);
+
+        SortedMap<String, Object> shape = new TreeMap<String, Object>();
+        shape.put("code", "RM");
+        shape.put("name", "Raw Materials");
+        assertEquals("INSERT INTO warehouses(code, name) VALUES(?, ?), (?, ?) ON CONFLICT(code) DO NOTHING;",
+                SQLBuilder.get().upsert("warehouses", shape, 2, new Upsert("code").setDefaultPolicy(Upsert.Policy.KEEP)));
+    }
+    @Test
+    public void indexAdvisor() throws SQLException {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("sku", "text NOT NULL");
+        columns.put("warehouse", "integer NOT NULL");
+        columns.put("quantity", "integer NOT NULL");
+        SQLiteUtils.createNewTable(conn, "stock", columns);
+        SQLiteUtils.dropIndex(conn, "idx_stock_warehouse_quantity");
+
+        IndexAdvisor advisor = new IndexAdvisor();
+        SQLiteUtils.setIndexAdvisor(advisor);
+        try {
+            for (int i = 0; i < 3; i++) {
+                SQLiteUtils.select(conn, "stock", new ArrayList<String>(),
+                        new SQLiteUtils.QueryCriteria().andGreaterThan("quantity", i).andEquals("warehouse", 1), rs -> { });
+            }
+            SQLiteUtils.select(conn, "stock", new ArrayList<String>(), new SQLiteUtils.QueryCriteria().andEquals("id", 1), rs -> { });
+            SQLiteUtils.select(conn, "stock", new ArrayList<String>(),
+                    new SQLiteUtils.QueryCriteria().andEquals("sku", "A").orEquals("warehouse", 2), rs -> { });
+        } finally {
+            SQLiteUtils.setIndexAdvisor(null);
+        }
+        assertEquals(3, advisor.getRecordedQueries());
+
+        List<IndexAdvisor.Advice> advices = advisor.analyze(conn);
+        assertEquals(2, advices.size());
+        IndexAdvisor.Advice advice = advices.get(0);
+        assertEquals(3, advice.getCalls());
+        assertEquals(Arrays.asList("warehouse", "quantity"), advice.getColumns());
+        assertEquals("CREATE INDEX IF NOT EXISTS idx_stock_warehouse_quantity ON stock (warehouse, quantity);",
+                advice.getCreateIndexSql());
+        assertTrue(advice.getPlans().get(0).startsWith("SCAN"));
+        assertTrue(advices.get(1).getColumns().isEmpty());
+
+        SQLiteUtils.createIndex(conn, advice.getIndexName(), "stock", advice.getColumns());
+        advices = advisor.analyze(conn);
+        assertEquals(1, advices.size());
+        assertTrue(advices.get(0).getColumns().isEmpty());
+
+        SQLiteUtils.dropIndex(conn, advice.getIndexName());
+        assertEquals(2, advisor.analyze(conn).size());
+
+        assertEquals("CREATE UNIQUE INDEX IF NOT EXISTS idx_stock_sku ON stock (sku, warehouse) WHERE quantity > 0;",
+                SQLBuilder.get().createIndex("idx_stock_sku", "stock", Arrays.asList("sku", "warehouse"), true, "quantity > 0"));
+        assertEquals("DROP INDEX IF EXISTS idx_stock_sku;", SQLBuilder.get().dropIndex("idx_stock_sku"));
+    }
+    @Test
+    public void valueBinders() throws SQLException {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase(":memory:");
+        Object[][] cases = {
+                {null, null, "null"},
+                {Long.MAX_VALUE, Long.MAX_VALUE, "integer"},
+                {(short) 7, 7L, "integer"},
+                {(byte) 8, 8L, "integer"},
+                {Boolean.TRUE, 1L, "integer"},
+                {1.5f, 1.5, "real"},
+                {'x', "x", "text"},
+                {new java.math.BigInteger("123456789012345678901234567890"), "123456789012345678901234567890", "text"},
+                {Instant.parse("2020-01-02T03:04:05Z"), "2020-01-02T03:04:05Z", "text"},
+                {LocalDate.of(2020, 1, 2), "2020-01-02", "text"},
+                {LocalDateTime.of(2020, 1, 2, 3, 4, 5), "2020-01-02T03:04:05", "text"},
+                {UUID.fromString("123e4567-e89b-12d3-a456-426614174000"), "123e4567-e89b-12d3-a456-426614174000", "text"},
+                {Upsert.Policy.ADD, "ADD", "text"},
+        };
+        for (Object[] c : cases) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT ?, typeof(?)")) {
+                SQLiteUtils.setValueForStatement(pstmt, 1, c[0]);
+                SQLiteUtils.setValueForStatement(pstmt, 2, c[0]);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    Object value = rs.getObject(1);
+                    assertEquals(String.valueOf(c[0]), c[1], value instanceof Integer ? (Object) ((Integer) value).longValue() : value);
+                    assertEquals(String.valueOf(c[0]), c[2], rs.getString(2));
+                }
+            }
+        }
+
+        byte[] blob = {1, 2, 3, 4, 5};
+        ByteBuffer slice = ByteBuffer.wrap(blob, 1, 3);
+        assertSame(blob, ValueBinders.toBytes(ByteBuffer.wrap(blob)));
+        assertArrayEquals(new byte[] {2, 3, 4}, ValueBinders.toBytes(slice));
+        assertEquals(1, slice.position());
+        assertArrayEquals(blob, ValueBinders.readFully(new ByteArrayInputStream(blob)));
+        byte[] large = new byte[20000];
+        large[19999] = 9;
+        assertArrayEquals(large, ValueBinders.readFully(new java.io.BufferedInputStream(new ByteArrayInputStream(large), 16) {
+            @Override
+            public synchronized int available() {
+                return 0;
+            }
+        }));
+
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT length(?), hex(?)")) {
+            SQLiteUtils.setValueForStatement(pstmt, 1, new ByteArrayInputStream(blob));
+            SQLiteUtils.setValueForStatement(pstmt, 2, slice);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                assertEquals(5, rs.getInt(1));
+                assertEquals("020304", rs.getString(2));
+            }
+        }
+
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT ?")) {
+            try {
+                SQLiteUtils.setValueForStatement(pstmt, 1, new StringBuilder("x"));
+                assertTrue("unsupported type must not be silently skipped", false);
+            } catch (SQLException e) {
+                assertTrue(e.getMessage().contains("java.lang.StringBuilder"));
+            }
+            ValueBinders.register(CharSequence.class, (p, index, value) -> p.setString(index, "cs:" + value));
+            SQLiteUtils.setValueForStatement(pstmt, 1, new StringBuilder("x"));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                assertEquals("cs:x", rs.getString(1));
+            }
+            SQLiteUtils.setValueForStatement(pstmt, 1, "plain");
+            try (ResultSet rs = pstmt.executeQuery()) {
+                assertEquals("plain", rs.getString(1));
+            }
+        }
+        conn.close();
+    }
+    @Test
+    public void blobChannel() throws Exception {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase(":memory:");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("payload", "blob");
+        SQLiteUtils.createNewTable(conn, "documents", columns);
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        values.put("id", 1);
+        SQLiteUtils.insert(conn, "documents", values);
+        values.put("id", 2);
+        SQLiteUtils.insert(conn, "documents", values);
+
+        byte[] data = new byte[10000];
+        new java.util.Random(42).nextBytes(data);
+        data[0] = 0;
+        data[9999] = (byte) 0xFF;
+
+        try (BlobChannel channel = new BlobChannel(conn, "documents", "payload", 1, 1024)) {
+            assertEquals(0, channel.size());
+            ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(data));
+            ByteBuffer buffer = ByteBuffer.allocate(700);
+            while (source.read(buffer) > 0) {
+                buffer.flip();
+                channel.write(buffer);
+                buffer.clear();
+            }
+        }
+
+        assertTrue(BlobChannel.preallocate(conn, "documents", "payload", 2, data.length));
+        try (BlobChannel channel = new BlobChannel(conn, "documents", "payload", 2, 1024)) {
+            assertEquals(data.length, channel.size());
+            channel.position(5000).write(ByteBuffer.wrap(data, 5000, 5000));
+            channel.position(0).write(ByteBuffer.wrap(data, 0, 5000));
+            assertEquals(data.length, channel.size());
+        }
+        assertTrue(!BlobChannel.preallocate(conn, "documents", "payload", 3, 10));
+
+        for (long rowid = 1; rowid <= 2; rowid++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (BlobChannel channel = new BlobChannel(conn, "documents", "payload", rowid, 1024)) {
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                int reads = 0;
+                while (channel.read(buffer) >= 0) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                    reads++;
+                }
+                assertEquals(10, reads);
+            }
+            assertArrayEquals(data, out.toByteArray());
+        }
+
+        try (BlobChannel channel = new BlobChannel(conn, "documents", "payload", 1)) {
+            channel.truncate(10);
+            assertEquals(10, channel.size());
+            channel.position(12).write(ByteBuffer.wrap(new byte[] {7}));
+            assertEquals(13, channel.size());
+        }
+        List<String> hex = SQLiteUtils.selectList(conn, "SELECT hex(payload) FROM documents WHERE id = 1;", new String[] {"hex(payload)"},
+                (rs, c) -> rs.getString(c[0]));
+        assertEquals(Collections.singletonList(SQLiteUtils.selectList(conn, "SELECT hex(substr(payload, 1, 10)) h FROM documents WHERE id = 2;",
+                new String[] {"h"}, (rs, c) -> rs.getString(c[0])).get(0) + "000007"), hex);
+        conn.close();
+    }
+    @Test
+    public void onlineBackup() throws SQLException {
+        for (String name : new String[] {"tests-backup.db", "tests-snapshot.db"}) {
+            new File(name).delete();
+        }
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("note", "text");
+        SQLiteUtils.createNewTable(conn, "journal", columns);
+        List<SortedMap<String, Object>> rows = new ArrayList<SortedMap<String, Object>>();
+        char[] note = new char[1000];
+        Arrays.fill(note, 'x');
+        for (int i = 0; i < 2000; i++) {
+            SortedMap<String, Object> row = new TreeMap<String, Object>();
+            // крайние значения rowid тоже должны попасть в копию
+            row.put("id", i == 0 ? Long.MIN_VALUE : i == 1999 ? Long.MAX_VALUE : (long) i);
+            row.put("note", new String(note));
+            rows.add(row);
+        }
+        SQLiteUtils.insertAll(conn, "journal", rows, new BatchInserter.Options());
+
+        SQLiteUtils.createIndex(conn, "idx_journal_note", "journal", Collections.singletonList("note"));
+
+        // в режиме журнала отката паузы только задержали бы фиксацию других соединений
+        OnlineBackup.Result result = OnlineBackup.backup(conn, "tests-backup.db", new OnlineBackup.Options().setPauseMillis(1));
+        assertEquals(2000, result.getRows());
+        assertEquals(0, result.getPausedNanos());
+        assertTrue(new File("tests-backup.db").delete());
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL;");
+        }
+        List<Long> progress = new ArrayList<Long>();
+        result = OnlineBackup.backup(conn, "tests-backup.db", new OnlineBackup.Options()
+                .setChunkRows(300)
+                .setPauseMillis(1)
+                .setProgressListener((copied, total) -> {
+                    assertEquals(2000, total);
+                    progress.add(copied);
+                }));
+        assertEquals(1, result.getTables());
+        assertEquals(2000, result.getRows());
+        assertEquals(7, result.getChunks());
+        assertEquals(Arrays.asList(300L, 600L, 900L, 1200L, 1500L, 1800L, 2000L), progress);
+        assertTrue(result.getPausedNanos() > 0);
+        assertEquals("CREATE UNIQUE INDEX online_backup.idx ON t (a)", OnlineBackup.qualify("CREATE UNIQUE INDEX idx ON t (a)", "index"));
+
+        OnlineBackup.snapshot(conn, "tests-snapshot.db");
+        conn.close();
+
+        for (String name : new String[] {"tests-backup.db", "tests-snapshot.db"}) {
+            Connection copy = SQLiteUtils.connectOrCreateNewDatabase(name);
+            assertEquals(Collections.singletonList(2000), SQLiteUtils.selectList(copy, "SELECT count(*) c FROM journal;",
+                    new String[] {"c"}, (rs, c) -> rs.getInt(c[0])));
+            assertEquals(Collections.singletonList(1), SQLiteUtils.selectList(copy,
+                    "SELECT count(*) c FROM sqlite_master WHERE name = 'idx_journal_note';", new String[] {"c"}, (rs, c) -> rs.getInt(c[0])));
+            copy.close();
+            new File(name).delete();
+        }
+    }
+    @Test
+    public void memoryDatabase() throws Exception {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("sku", "text PRIMARY KEY");
+        columns.put("price", "real");
+        SQLiteUtils.createNewTable(conn, "prices", columns);
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        values.put("sku", "A");
+        values.put("price", 1.5);
+        SQLiteUtils.insert(conn, "prices", values);
+        conn.close();
+
+        String count = "SELECT count(*) c FROM prices;";
+        try (MemoryDatabase memory = new MemoryDatabase("tests.db", new MemoryDatabase.Options().setFlushIntervalMillis(20))) {
+            assertTrue(memory.getLoadNanos() > 0);
+            assertTrue(memory.getMemoryBytes() > 0);
+            try (Connection hot = memory.connect()) {
+                assertEquals(Collections.singletonList(1), SQLiteUtils.selectList(hot, count, new String[] {"c"}, (rs, c) -> rs.getInt(c[0])));
+                values.put("sku", "B");
+                SQLiteUtils.insert(hot, "prices", values);
+            }
+            for (int i = 0; i < 200 && memory.getFlushes() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, memory.getFlushes());
+            try (Connection file = SQLiteUtils.connectOrCreateNewDatabase("tests.db")) {
+                assertEquals(Collections.singletonList(2), SQLiteUtils.selectList(file, count, new String[] {"c"}, (rs, c) -> rs.getInt(c[0])));
+            }
+
+            try (SQLitePool pool = memory.openPool(new SQLitePool.Options().setReaders(2).setWalMode(false))) {
+                values.put("sku", "C");
+                pool.write(c -> SQLiteUtils.executeInsert(c, "prices", values));
+                assertEquals(Integer.valueOf(3), pool.read(c -> SQLiteUtils.selectList(c, count, new String[] {"c"}, (rs, l) -> rs.getInt(l[0])).get(0)));
+            }
+        }
+        try (Connection file = SQLiteUtils.connectOrCreateNewDatabase("tests.db")) {
+            assertEquals(Collections.singletonList(3), SQLiteUtils.selectList(file, count, new String[] {"c"}, (rs, c) -> rs.getInt(c[0])));
+        }
+    }
+    @Test
+    public void asyncSQLiteUtils() throws Exception {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        columns.put("name", "text");
+        SQLiteUtils.createNewTable(conn, "events", columns);
+        conn.close();
+
+        try (SQLitePool pool = new SQLitePool("tests.db", new SQLitePool.Options().setReaders(2));
+             AsyncSQLiteUtils async = new AsyncSQLiteUtils(pool, new AsyncSQLiteUtils.Options().setVirtualThreads(false))) {
+            List<CompletableFuture<Integer>> inserts = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 1; i <= 10; i++) {
+                SortedMap<String, Object> values = new TreeMap<String, Object>();
+                values.put("id", i);
+                values.put("name", "event " + i);
+                inserts.add(async.insert("events", values));
+            }
+            CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get();
+
+            SortedMap<String, Object> values = new TreeMap<String, Object>();
+            values.put("name", "renamed");
+            SortedMap<String, Object> criterions = new TreeMap<String, Object>();
+            criterions.put("id", 1);
+            assertEquals(Integer.valueOf(1), async.update("events", values, criterions).get());
+            assertEquals(Integer.valueOf(1), async.delete("events", new SQLiteUtils.QueryCriteria().andEquals("id", 10)).get());
+            List<Row> rows = async.select("events", new ArrayList<String>(), new SQLiteUtils.QueryCriteria().andLessThan("id", 3)).get();
+            assertEquals(2, rows.size());
+
+            List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+            CompletableFuture<String> completed = new CompletableFuture<String>();
+            async.publish("events", Collections.singletonList("id"), new SQLiteUtils.QueryCriteria(), 4)
+                    .subscribe(new AsyncSQLiteUtils.ISubscriber<Row>() {
+                        private AsyncSQLiteUtils.ISubscription subscription;
+
+                        private int pending;
+
+                        @Override
+                        public void onSubscribe(AsyncSQLiteUtils.ISubscription subscription) {
+                            this.subscription = subscription;
+                            pending = 3;
+                            subscription.request(3);
+                        }
+
+                        @Override
+                        public void onNext(Row row) {
+                            received.add(row.get("id"));
+                            if (--pending == 0) {
+                                pending = 3;
+                                subscription.request(3);
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            completed.completeExceptionally(throwable);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            completed.complete("done");
+                        }
+                    });
+            assertEquals("done", completed.get());
+            assertEquals(Arrays.<Object>asList(1, 2, 3, 4, 5, 6, 7, 8, 9), received);
+            assertEquals(2, async.getAvailableReads());
+
+            CompletableFuture<Integer> cancelled = new CompletableFuture<Integer>();
+            List<Row> partial = Collections.synchronizedList(new ArrayList<Row>());
+            async.publish("events", new ArrayList<String>(), new SQLiteUtils.QueryCriteria(), 0)
+                    .subscribe(new AsyncSQLiteUtils.ISubscriber<Row>() {
+                        private AsyncSQLiteUtils.ISubscription subscription;
+
+                        @Override
+                        public void onSubscribe(AsyncSQLiteUtils.ISubscription subscription) {
+                            this.subscription = subscription;
+                            subscription.request(Long.MAX_VALUE);
+                        }
+
+                        @Override
+                        public void onNext(Row row) {
+                            partial.add(row);
+                            if (partial.size() == 2) {
+                                subscription.cancel();
+                                subscription.request(Long.MAX_VALUE);
+                                cancelled.complete(partial.size());
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            cancelled.completeExceptionally(throwable);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            cancelled.completeExceptionally(new AssertionError("completed after cancel"));
+                        }
+                    });
+            assertEquals(Integer.valueOf(2), cancelled.get());
+            for (int i = 0; i < 100 && async.getAvailableReads() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, async.getAvailableReads());
+            assertEquals(2, partial.size());
+            assertEquals(0, pool.getStats().getReadersInUse());
+        }
+    }
+
+    @Test
+    public void asyncReadWaitsWithoutBlockingExecutor() throws Exception {
+        Connection conn = SQLiteUtils.connectOrCreateNewDatabase("tests.db");
+        SortedMap<String, String> columns = new TreeMap<String, String>();
+        columns.put("id", "integer PRIMARY KEY");
+        SQLiteUtils.createNewTable(conn, "events", columns);
+        for (int i = 1; i <= 5; i++) {
+            SQLiteUtils.insert(conn, "events", new TreeMap<String, Object>(Collections.singletonMap("id", (Object) i)));
+        }
+        conn.close();
+
+        // один поток исполнителя и одно разрешение: подписка держит разрешение между запросами строк,
+        // а ожидающее разрешения чтение не должно занимать единственный поток
+        try (SQLitePool pool = new SQLitePool("tests.db", new SQLitePool.Options().setReaders(1));
+             AsyncSQLiteUtils async = new AsyncSQLiteUtils(pool, new AsyncSQLiteUtils.Options().setVirtualThreads(false))) {
+            CompletableFuture<AsyncSQLiteUtils.ISubscription> first = new CompletableFuture<AsyncSQLiteUtils.ISubscription>();
+            CompletableFuture<Integer> completed = new CompletableFuture<Integer>();
+            List<Row> received = Collections.synchronizedList(new ArrayList<Row>());
+            async.publish("events", new ArrayList<String>(), new SQLiteUtils.QueryCriteria(), 0)
+                    .subscribe(new AsyncSQLiteUtils.ISubscriber<Row>() {
+                        private AsyncSQLiteUtils.ISubscription subscription;
+
+                        @Override
+                        public void onSubscribe(AsyncSQLiteUtils.ISubscription subscription) {
+                            this.subscription = subscription;
+                            subscription.request(1);
+                        }
+
+                        @Override
+                        public void onNext(Row row) {
+                            received.add(row);
+                            first.complete(subscription);
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            completed.completeExceptionally(throwable);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            completed.complete(received.size());
+                        }
+                    });
+            AsyncSQLiteUtils.ISubscription subscription = first.get(5, TimeUnit.SECONDS);
+            CompletableFuture<List<Row>> selected = async.select("events", new ArrayList<String>(), new SQLiteUtils.QueryCriteria());
+            subscription.request(10);
+
+            assertEquals(Integer.valueOf(5), completed.get(5, TimeUnit.SECONDS));
+            assertEquals(5, selected.get(5, TimeUnit.SECONDS).size());
+            for (int i = 0; i < 100 && async.getAvailableReads() < 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, async.getAvailableReads());
+        }
     }
-}
\ No newline at end of file
+}